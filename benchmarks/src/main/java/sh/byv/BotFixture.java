@@ -0,0 +1,121 @@
+package sh.byv;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.camel.component.telegram.model.Chat;
+import org.apache.camel.component.telegram.model.IncomingCallbackQuery;
+import org.apache.camel.component.telegram.model.IncomingMessage;
+import org.apache.camel.component.telegram.model.User;
+import org.apache.camel.component.telegram.model.payments.PreCheckoutQuery;
+import org.apache.camel.component.telegram.model.payments.ShippingQuery;
+import org.apache.camel.component.telegram.model.payments.SuccessfulPayment;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The real {@link TelegramRoutes} processor wired to a {@link StubTelegramSender}, plus builders for the update
+ * models it handles.
+ */
+@State(Scope.Benchmark)
+public class BotFixture {
+
+    static final String CHAT_ID = "100200300";
+
+    TelegramRoutes routes;
+    StarLedger ledger;
+    TransactionReport report;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        final var sender = new StubTelegramSender();
+
+        ledger = new StarLedger(sender);
+        ledger.seeding.set(CompletableFuture.completedFuture(null));
+
+        final var templates = new MessageTemplates();
+        templates.paymentToken = "benchmark";
+        templates.init();
+
+        final var invoiceLinks = new InvoiceLinkPool(sender, templates);
+        invoiceLinks.maxAge = Duration.ofHours(1);
+
+        final var balanceCache = new StarBalanceCache(sender);
+        balanceCache.ttl = Duration.ofSeconds(5);
+
+        report = new TransactionReport(ledger);
+        report.pageSize = 10;
+
+        routes = new TelegramRoutes(
+                sender,
+                null,
+                null,
+                ledger,
+                invoiceLinks,
+                balanceCache,
+                new BotMetrics(new SimpleMeterRegistry()),
+                templates,
+                report,
+                null);
+    }
+
+    static User user() {
+        final var user = new User();
+        user.setId(Long.valueOf(CHAT_ID));
+        user.setFirstName("Bench");
+        return user;
+    }
+
+    static IncomingMessage message(final String text) {
+        final var chat = new Chat();
+        chat.setId(CHAT_ID);
+
+        final var message = new IncomingMessage();
+        message.setMessageId(42L);
+        message.setDate(Instant.now());
+        message.setChat(chat);
+        message.setFrom(user());
+        message.setText(text);
+        return message;
+    }
+
+    static IncomingMessage starPayment(final String chargeId) {
+        final var successfulPayment = new SuccessfulPayment();
+        successfulPayment.setCurrency("XTR");
+        successfulPayment.setTotalAmount(1);
+        successfulPayment.setTelegramPaymentChargeId(chargeId);
+
+        final var message = message(null);
+        message.setSuccessfulPayment(successfulPayment);
+        return message;
+    }
+
+    static IncomingCallbackQuery callback(final String data) {
+        final var callbackQuery = new IncomingCallbackQuery();
+        callbackQuery.setId("callback-1");
+        callbackQuery.setFrom(user());
+        callbackQuery.setMessage(message("What would you like to do?"));
+        callbackQuery.setData(data);
+        return callbackQuery;
+    }
+
+    static PreCheckoutQuery preCheckoutQuery() {
+        final var preCheckoutQuery = new PreCheckoutQuery();
+        preCheckoutQuery.setId("pre-checkout-1");
+        preCheckoutQuery.setFrom(user());
+        preCheckoutQuery.setCurrency("XTR");
+        preCheckoutQuery.setTotalAmount(1);
+        return preCheckoutQuery;
+    }
+
+    static ShippingQuery shippingQuery() {
+        final var shippingQuery = new ShippingQuery();
+        shippingQuery.setId("shipping-1");
+        shippingQuery.setFrom(user());
+        return shippingQuery;
+    }
+}
@@ -0,0 +1,37 @@
+package sh.byv;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Construction of the outbound messages sent on the common flows.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OutboundMessageBenchmark {
+
+    @Benchmark
+    public Object sendPaymentMenu(final BotFixture fixture) {
+        return fixture.routes.sendPaymentMenu(BotFixture.CHAT_ID);
+    }
+
+    @Benchmark
+    public Object sendInvoice(final BotFixture fixture) {
+        return fixture.routes.sendInvoice(BotFixture.CHAT_ID);
+    }
+
+    @Benchmark
+    public Object answerShippingQuery(final BotFixture fixture) {
+        return fixture.routes.answerShippingQuery("shipping-1");
+    }
+}
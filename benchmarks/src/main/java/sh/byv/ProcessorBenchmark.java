@@ -0,0 +1,84 @@
+package sh.byv;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Update processing through {@link TelegramRoutes#process(Object)}: dispatch over the update model types and
+ * routing of each callback value.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProcessorBenchmark {
+
+    @State(Scope.Thread)
+    public static class UpdateMix {
+
+        Object[] updates;
+        int next;
+
+        @Setup
+        public void setUp() {
+            updates = new Object[] {
+                BotFixture.message("/start"),
+                BotFixture.callback(TelegramRoutes.STAR_BALANCE),
+                BotFixture.preCheckoutQuery(),
+                BotFixture.shippingQuery(),
+                BotFixture.starPayment("charge-1"),
+                BotFixture.message("hello")
+            };
+        }
+
+        Object next() {
+            final var update = updates[next];
+            next = (next + 1) % updates.length;
+            return update;
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Callback {
+
+        @Param({
+            TelegramRoutes.VIA_PROVIDER,
+            TelegramRoutes.INVOICE_LINK,
+            TelegramRoutes.TELEGRAM_STARS,
+            TelegramRoutes.STARS_LINK,
+            TelegramRoutes.REFUND_RECENT_TX,
+            TelegramRoutes.STAR_BALANCE,
+            TelegramRoutes.NON_REFUNDED_TX
+        })
+        String data;
+
+        Object callbackQuery;
+
+        @Setup
+        public void setUp() {
+            callbackQuery = BotFixture.callback(data);
+        }
+    }
+
+    @Benchmark
+    public Object typeDispatch(final BotFixture fixture, final UpdateMix mix) {
+        return fixture.routes.process(mix.next());
+    }
+
+    @Benchmark
+    public Object callbackRouting(final BotFixture fixture, final Callback callback) {
+        return fixture.routes.process(callback.callbackQuery);
+    }
+}
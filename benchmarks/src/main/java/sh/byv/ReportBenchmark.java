@@ -0,0 +1,58 @@
+package sh.byv;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rendering of a {@code NON_REFUNDED_TX} report page, the first and one deep into the history, for ledgers of
+ * increasing size.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ReportBenchmark {
+
+    @Param({"10", "1000", "100000"})
+    int transactions;
+
+    BotFixture fixture;
+
+    @Setup
+    public void setUp() {
+        fixture = new BotFixture();
+        fixture.setUp();
+        for (int i = 0; i < transactions; i++) {
+            fixture.ledger.addPayment(new StarLedger.Entry(
+                    "stxTransaction" + i, 1 + i % 50, 1000L + i % 100, "User" + i, "Last", "user" + i, 1_700_000_000L + i));
+        }
+    }
+
+    @Benchmark
+    public Object firstPage() {
+        return fixture.report.page(0);
+    }
+
+    @Benchmark
+    public Object middlePage() {
+        return fixture.report.page(transactions / 2);
+    }
+
+    @Benchmark
+    public Object middlePageBefore() {
+        return fixture.report.pageBefore(transactions / 2);
+    }
+}
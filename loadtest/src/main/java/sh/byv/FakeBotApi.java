@@ -0,0 +1,227 @@
+package sh.byv;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Stand-in for the Telegram Bot API. {@code getUpdates} long-polls a queue filled by the load driver, and every
+ * other method gets a canned successful answer after the configured latency, unless an error or a 429 is injected.
+ * A call carrying the bot's answer to an update, the last call it makes for it, is reported as a reply once the
+ * latency has passed, as the bot would see it answered.
+ */
+class FakeBotApi {
+
+    record Faults(Duration latency, Duration jitter, double errorRate, double tooManyRequestsRate, int retryAfter) {}
+
+    static final int DEFAULT_LIMIT = 100;
+
+    final ObjectMapper mapper;
+    final Faults faults;
+    final Consumer<String> onReply;
+
+    final BlockingQueue<ObjectNode> updates = new LinkedBlockingQueue<>();
+    final AtomicLong messageIds = new AtomicLong();
+    final LongAdder calls = new LongAdder();
+    final LongAdder errors = new LongAdder();
+    final LongAdder tooManyRequests = new LongAdder();
+
+    HttpServer server;
+
+    FakeBotApi(final ObjectMapper mapper, final Faults faults, final Consumer<String> onReply) {
+        this.mapper = mapper;
+        this.faults = faults;
+        this.onReply = onReply;
+    }
+
+    void start(final int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(port), 1024);
+        server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+    void stop() {
+        server.stop(0);
+    }
+
+    void enqueue(final ObjectNode update) {
+        updates.add(update);
+    }
+
+    void handle(final HttpExchange exchange) throws IOException {
+        try (exchange) {
+            final var path = exchange.getRequestURI().getPath();
+            final var method = path.substring(path.lastIndexOf('/') + 1);
+            final var body = exchange.getRequestBody().readAllBytes();
+
+            if (method.equals("getUpdates")) {
+                respond(exchange, 200, ok(getUpdates(params(exchange, body))));
+                return;
+            }
+
+            calls.increment();
+            final var random = ThreadLocalRandom.current();
+            if (random.nextDouble() < faults.tooManyRequestsRate()) {
+                tooManyRequests.increment();
+                final var error = mapper.createObjectNode()
+                        .put("ok", false)
+                        .put("error_code", 429)
+                        .put("description", "Too Many Requests: retry after " + faults.retryAfter());
+                error.putObject("parameters").put("retry_after", faults.retryAfter());
+                respond(exchange, 429, error);
+                return;
+            }
+            if (random.nextDouble() < faults.errorRate()) {
+                errors.increment();
+                respond(
+                        exchange,
+                        500,
+                        mapper.createObjectNode()
+                                .put("ok", false)
+                                .put("error_code", 500)
+                                .put("description", "Internal Server Error"));
+                return;
+            }
+
+            final var request = parse(body);
+            sleep();
+            respond(exchange, 200, ok(resultOf(method, request)));
+            final var replyKey = replyKeyOf(method, request);
+            if (replyKey != null) {
+                onReply.accept(replyKey);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    JsonNode getUpdates(final JsonNode params) throws InterruptedException {
+        final var limit = params.path("limit").asInt(DEFAULT_LIMIT);
+        final var timeout = params.path("timeout").asLong(0);
+        final var batch = new ArrayList<ObjectNode>();
+        final var first = updates.poll(timeout, TimeUnit.SECONDS);
+        if (first != null) {
+            batch.add(first);
+            updates.drainTo(batch, limit - 1);
+        }
+        return mapper.valueToTree(batch);
+    }
+
+    JsonNode resultOf(final String method, final JsonNode request) {
+        return switch (method) {
+            case "sendMessage", "editMessageText", "sendInvoice" -> {
+                final var message = mapper.createObjectNode()
+                        .put("message_id", messageIds.incrementAndGet())
+                        .put("date", System.currentTimeMillis() / 1000)
+                        .put("text", request.path("text").asText(""));
+                message.putObject("chat").put("id", request.path("chat_id").asText()).put("type", "private");
+                yield message;
+            }
+            case "createInvoiceLink" -> mapper.getNodeFactory().textNode("https://t.me/$loadtest");
+            case "getStarTransactions" -> {
+                final var transactions = mapper.createObjectNode();
+                transactions.putArray("transactions");
+                yield transactions;
+            }
+            case "getMyStarBalance" -> mapper.createObjectNode().put("amount", 1000).put("nanostar_amount", 0);
+            default -> mapper.getNodeFactory().booleanNode(true);
+        };
+    }
+
+    /**
+     * Returns the key of the update the call answers, or null if it is not the answer: the answer to a callback query
+     * and the chat action come before the work a button or {@code /start} starts, and so do the greeting and the
+     * edits ending in "..." that hide a keyboard while the work runs.
+     */
+    static String replyKeyOf(final String method, final JsonNode request) {
+        for (final var query : new String[] {"pre_checkout_query_id", "shipping_query_id"}) {
+            if (request.hasNonNull(query)) {
+                return "query:" + request.get(query).asText();
+            }
+        }
+        if (!request.hasNonNull("chat_id")) {
+            return null;
+        }
+        final var text = request.path("text").asText("");
+        final var reply =
+                switch (method) {
+                    case "sendInvoice" -> true;
+                    case "sendMessage", "editMessageText" -> !text.endsWith("...")
+                            && (request.hasNonNull("reply_markup") || !text.startsWith("Hello, "));
+                    default -> false;
+                };
+        return reply ? "chat:" + request.get("chat_id").asText() : null;
+    }
+
+    void sleep() throws InterruptedException {
+        var delay = faults.latency().toNanos();
+        if (!faults.jitter().isZero()) {
+            delay += ThreadLocalRandom.current().nextLong(faults.jitter().toNanos());
+        }
+        if (delay > 0) {
+            TimeUnit.NANOSECONDS.sleep(delay);
+        }
+    }
+
+    JsonNode parse(final byte[] body) {
+        if (body.length == 0) {
+            return mapper.createObjectNode();
+        }
+        try {
+            return mapper.readTree(body);
+        } catch (IOException e) {
+            // Multipart uploads are not inspected
+            return mapper.createObjectNode();
+        }
+    }
+
+    JsonNode params(final HttpExchange exchange, final byte[] body) {
+        final var query = exchange.getRequestURI().getRawQuery();
+        if (query == null) {
+            return parse(body);
+        }
+        final Map<String, String> params = new HashMap<>();
+        for (final var pair : query.split("&")) {
+            final var separator = pair.indexOf('=');
+            if (separator > 0) {
+                params.put(
+                        URLDecoder.decode(pair.substring(0, separator), StandardCharsets.UTF_8),
+                        URLDecoder.decode(pair.substring(separator + 1), StandardCharsets.UTF_8));
+            }
+        }
+        return mapper.valueToTree(params);
+    }
+
+    ObjectNode ok(final JsonNode result) {
+        final var response = mapper.createObjectNode().put("ok", true);
+        response.set("result", result);
+        return response;
+    }
+
+    void respond(final HttpExchange exchange, final int status, final JsonNode response) throws IOException {
+        final var bytes = mapper.writeValueAsBytes(response);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        exchange.getResponseBody().write(bytes);
+    }
+}
@@ -0,0 +1,214 @@
+package sh.byv;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Load driver. It starts a {@link FakeBotApi}, injects updates at a fixed rate either through {@code getUpdates} or
+ * by posting them to the bot's webhook, and reports sustained throughput and the latency from injecting an update to
+ * the answer of the Telegram call that replies to it.
+ *
+ * <p>Options, all {@code --name=value}: {@code port} (8081), {@code rate} updates/s (100), {@code duration} (60s),
+ * {@code warmup} (10s), {@code chats} (1000), {@code trace} JSONL file of recorded updates, {@code latency} (20ms),
+ * {@code jitter} (0ms), {@code error-rate} (0), {@code too-many-requests-rate} (0), {@code retry-after} seconds (1),
+ * {@code webhook} URL, {@code webhook-secret}, {@code report-every} (5s).
+ */
+public class LoadTest {
+
+    static final ObjectMapper MAPPER = new ObjectMapper();
+    static final long TICK_MILLIS = 10;
+
+    final Map<String, String> options;
+    final Map<String, Long> pending = new ConcurrentHashMap<>();
+    final LatencyHistogram latencies = new LatencyHistogram();
+    final LongAdder injected = new LongAdder();
+    final LongAdder replied = new LongAdder();
+    final LongAdder unmeasured = new LongAdder();
+    final LongAdder rejected = new LongAdder();
+
+    FakeBotApi api;
+    UpdateTrace trace;
+    HttpClient webhookClient;
+
+    LoadTest(final Map<String, String> options) {
+        this.options = options;
+    }
+
+    public static void main(final String[] args) throws Exception {
+        final Map<String, String> options = new HashMap<>();
+        for (final var arg : args) {
+            final var separator = arg.indexOf('=');
+            if (!arg.startsWith("--") || separator < 0) {
+                throw new IllegalArgumentException("Expected --name=value, got " + arg);
+            }
+            options.put(arg.substring(2, separator), arg.substring(separator + 1));
+        }
+        new LoadTest(options).run();
+    }
+
+    void run() throws Exception {
+        final var port = Integer.parseInt(option("port", "8081"));
+        final var rate = Double.parseDouble(option("rate", "100"));
+        final var duration = duration(option("duration", "60s"));
+        final var warmup = duration(option("warmup", "10s"));
+        final var reportEvery = duration(option("report-every", "5s"));
+
+        trace = options.containsKey("trace")
+                ? UpdateTrace.recorded(MAPPER, Path.of(options.get("trace")))
+                : UpdateTrace.synthetic(MAPPER, Integer.parseInt(option("chats", "1000")));
+        api = new FakeBotApi(
+                MAPPER,
+                new FakeBotApi.Faults(
+                        duration(option("latency", "20ms")),
+                        duration(option("jitter", "0ms")),
+                        Double.parseDouble(option("error-rate", "0")),
+                        Double.parseDouble(option("too-many-requests-rate", "0")),
+                        Integer.parseInt(option("retry-after", "1"))),
+                this::onReply);
+        api.start(port);
+        if (options.containsKey("webhook")) {
+            webhookClient = HttpClient.newBuilder()
+                    .executor(Executors.newVirtualThreadPerTaskExecutor())
+                    .build();
+        }
+        System.out.printf(
+                "Bot API stand-in on http://localhost:%d, injecting %.0f updates/s via %s for %s after %s warm-up%n",
+                port, rate, webhookClient != null ? options.get("webhook") : "getUpdates", duration, warmup);
+
+        final var scheduler = Executors.newSingleThreadScheduledExecutor();
+        final var startedAt = System.nanoTime();
+        final var seq = new long[] {1};
+        scheduler.scheduleAtFixedRate(
+                () -> {
+                    final var due = (long) (rate * (System.nanoTime() - startedAt) / 1e9);
+                    while (seq[0] <= due) {
+                        inject(trace.next(seq[0]++));
+                    }
+                },
+                0,
+                TICK_MILLIS,
+                TimeUnit.MILLISECONDS);
+
+        final var totalMillis = warmup.plus(duration).toMillis();
+        var lastInjected = 0L;
+        var lastReplied = 0L;
+        var elapsed = 0L;
+        var warm = warmup.isZero();
+        while (elapsed < totalMillis) {
+            final var step = Math.min(reportEvery.toMillis(), totalMillis - elapsed);
+            if (!warm && elapsed + step > warmup.toMillis()) {
+                Thread.sleep(warmup.toMillis() - elapsed);
+                elapsed = warmup.toMillis();
+                latencies.reset();
+                lastInjected = injected.sum();
+                lastReplied = replied.sum();
+                warm = true;
+                System.out.println("Warm-up done, measuring");
+                continue;
+            }
+            Thread.sleep(step);
+            elapsed += step;
+            final var injectedNow = injected.sum();
+            final var repliedNow = replied.sum();
+            System.out.printf(
+                    "%6.1fs injected %8.1f/s replied %8.1f/s %s pending %d%n",
+                    elapsed / 1000.0,
+                    (injectedNow - lastInjected) * 1000.0 / step,
+                    (repliedNow - lastReplied) * 1000.0 / step,
+                    percentiles(),
+                    pending.size());
+            lastInjected = injectedNow;
+            lastReplied = repliedNow;
+        }
+        scheduler.shutdownNow();
+        api.stop();
+
+        System.out.printf(
+                "%nInjected %d updates, %d replies measured, %d unmeasured, %d still pending, %d rejected by webhook%n",
+                injected.sum(), latencies.count(), unmeasured.sum(), pending.size(), rejected.sum());
+        System.out.printf(
+                "Bot API calls %d, injected errors %d, injected 429s %d%n",
+                api.calls.sum(), api.errors.sum(), api.tooManyRequests.sum());
+        System.out.printf(
+                "Sustained %.1f replies/s over %s%n", latencies.count() / (duration.toMillis() / 1000.0), duration);
+        System.out.println("Update-to-reply latency " + percentiles());
+    }
+
+    void inject(final ObjectNode update) {
+        final var replyKey = UpdateTrace.replyKeyOf(update);
+        if (replyKey != null && pending.putIfAbsent(replyKey, System.nanoTime()) != null) {
+            // An earlier update of the chat is still waiting for its reply, so this one cannot be told apart
+            unmeasured.increment();
+        }
+        injected.increment();
+        if (webhookClient == null) {
+            api.enqueue(update);
+            return;
+        }
+        final var request = HttpRequest.newBuilder(URI.create(options.get("webhook")))
+                .header("Content-Type", "application/json")
+                .header("X-Telegram-Bot-Api-Secret-Token", option("webhook-secret", ""))
+                .POST(HttpRequest.BodyPublishers.ofString(update.toString()))
+                .build();
+        webhookClient
+                .sendAsync(request, HttpResponse.BodyHandlers.discarding())
+                .whenComplete((response, e) -> {
+                    if (e != null || response.statusCode() != 200) {
+                        rejected.increment();
+                        if (replyKey != null) {
+                            pending.remove(replyKey);
+                        }
+                    }
+                });
+    }
+
+    void onReply(final String replyKey) {
+        final var injectedAt = pending.remove(replyKey);
+        if (injectedAt != null) {
+            latencies.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - injectedAt));
+            replied.increment();
+        }
+    }
+
+    String percentiles() {
+        return String.format(
+                "p50 %s p90 %s p99 %s p99.9 %s max %s",
+                millis(latencies.percentile(50)),
+                millis(latencies.percentile(90)),
+                millis(latencies.percentile(99)),
+                millis(latencies.percentile(99.9)),
+                millis(latencies.max()));
+    }
+
+    static String millis(final long micros) {
+        return String.format("%.1fms", micros / 1000.0);
+    }
+
+    String option(final String name, final String defaultValue) {
+        return options.getOrDefault(name, defaultValue);
+    }
+
+    static Duration duration(final String value) {
+        if (value.endsWith("ms")) {
+            return Duration.ofMillis(Long.parseLong(value.substring(0, value.length() - 2)));
+        } else if (value.endsWith("s")) {
+            return Duration.ofSeconds(Long.parseLong(value.substring(0, value.length() - 1)));
+        } else if (value.endsWith("m")) {
+            return Duration.ofMinutes(Long.parseLong(value.substring(0, value.length() - 1)));
+        }
+        return Duration.ofSeconds(Long.parseLong(value));
+    }
+}
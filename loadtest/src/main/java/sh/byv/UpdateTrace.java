@@ -0,0 +1,174 @@
+package sh.byv;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Source of updates to inject. A recorded trace is a JSONL file of Bot API {@code Update} objects replayed in a
+ * loop; the synthetic trace mixes {@code /start} messages, menu callbacks, pre-checkout and shipping queries over a
+ * fixed population of chats. Update ids are reassigned, and query and message ids made unique, so replies can be
+ * told apart and replayed updates are not taken for redeliveries.
+ */
+abstract class UpdateTrace {
+
+    static final String[] CALLBACKS = {
+        "via-provider",
+        "invoice-link",
+        "telegram-stars",
+        "stars-link",
+        "refund-recent-tx",
+        "star-balance",
+        "non-refunded-tx"
+    };
+
+    final ObjectMapper mapper;
+
+    UpdateTrace(final ObjectMapper mapper) {
+        this.mapper = mapper;
+    }
+
+    /**
+     * Returns the update to inject with the given sequence number.
+     */
+    abstract ObjectNode next(long seq);
+
+    static UpdateTrace synthetic(final ObjectMapper mapper, final int chats) {
+        return new Synthetic(mapper, chats);
+    }
+
+    static UpdateTrace recorded(final ObjectMapper mapper, final Path path) throws IOException {
+        final var updates = Files.readAllLines(path).stream()
+                .filter(line -> !line.isBlank())
+                .map(line -> {
+                    try {
+                        return (ObjectNode) mapper.readTree(line);
+                    } catch (IOException e) {
+                        throw new IllegalArgumentException("Malformed update in " + path + ": " + line, e);
+                    }
+                })
+                .toList();
+        if (updates.isEmpty()) {
+            throw new IllegalArgumentException("No updates in " + path);
+        }
+        return new Recorded(mapper, updates);
+    }
+
+    /**
+     * Returns the key the call answering the update will carry, or null if the bot does not reply to it. A button
+     * press and {@code /start} are answered by the message, edit or invoice that ends their work, in the chat; the
+     * payment queries by their answers.
+     */
+    static String replyKeyOf(final ObjectNode update) {
+        if (update.has("callback_query")) {
+            return "chat:" + update.path("callback_query").path("message").path("chat").path("id").asText();
+        } else if (update.has("pre_checkout_query")) {
+            return "query:" + update.path("pre_checkout_query").path("id").asText();
+        } else if (update.has("shipping_query")) {
+            return "query:" + update.path("shipping_query").path("id").asText();
+        } else if (update.path("message").path("text").asText().equals("/start")) {
+            return "chat:" + update.path("message").path("chat").path("id").asText();
+        }
+        return null;
+    }
+
+    static final class Synthetic extends UpdateTrace {
+
+        final int chats;
+
+        Synthetic(final ObjectMapper mapper, final int chats) {
+            super(mapper);
+            this.chats = chats;
+        }
+
+        @Override
+        ObjectNode next(final long seq) {
+            final var random = ThreadLocalRandom.current();
+            final var chatId = 100_000_000L + random.nextInt(chats);
+            final var update = mapper.createObjectNode().put("update_id", seq);
+            final var kind = random.nextInt(100);
+            if (kind < 50) {
+                update.set("message", message(seq, chatId, "/start"));
+            } else if (kind < 85) {
+                final var callbackQuery = update.putObject("callback_query").put("id", "cb-" + seq);
+                callbackQuery.set("from", user(chatId));
+                callbackQuery.set("message", message(seq, chatId, "What would you like to do?"));
+                callbackQuery.put("chat_instance", String.valueOf(chatId));
+                callbackQuery.put("data", CALLBACKS[random.nextInt(CALLBACKS.length)]);
+            } else if (kind < 95) {
+                final var preCheckoutQuery =
+                        update.putObject("pre_checkout_query").put("id", "pcq-" + seq);
+                preCheckoutQuery.set("from", user(chatId));
+                preCheckoutQuery.put("currency", "XTR");
+                preCheckoutQuery.put("total_amount", 1);
+                preCheckoutQuery.put("invoice_payload", "order-" + seq);
+            } else {
+                final var shippingQuery = update.putObject("shipping_query").put("id", "sq-" + seq);
+                shippingQuery.set("from", user(chatId));
+                shippingQuery.put("invoice_payload", "order-" + seq);
+                shippingQuery
+                        .putObject("shipping_address")
+                        .put("country_code", "RU")
+                        .put("state", "")
+                        .put("city", "Moscow")
+                        .put("street_line1", "Tverskaya 1")
+                        .put("street_line2", "")
+                        .put("post_code", "125009");
+            }
+            return update;
+        }
+
+        ObjectNode message(final long seq, final long chatId, final String text) {
+            final var message = mapper.createObjectNode()
+                    .put("message_id", seq)
+                    .put("date", System.currentTimeMillis() / 1000)
+                    .put("text", text);
+            message.set("from", user(chatId));
+            message.putObject("chat").put("id", chatId).put("type", "private");
+            return message;
+        }
+
+        ObjectNode user(final long userId) {
+            return mapper.createObjectNode()
+                    .put("id", userId)
+                    .put("is_bot", false)
+                    .put("first_name", "Load" + userId);
+        }
+    }
+
+    static final class Recorded extends UpdateTrace {
+
+        final List<ObjectNode> updates;
+
+        Recorded(final ObjectMapper mapper, final List<ObjectNode> updates) {
+            super(mapper);
+            this.updates = updates;
+        }
+
+        @Override
+        ObjectNode next(final long seq) {
+            final var update = updates.get((int) (seq % updates.size())).deepCopy();
+            update.put("update_id", seq);
+            for (final var query : List.of("callback_query", "pre_checkout_query", "shipping_query")) {
+                if (update.get(query) instanceof ObjectNode node) {
+                    node.put("id", node.path("id").asText() + "-" + seq);
+                }
+            }
+            // The bot drops a message it has seen before by chat and message id, so every loop needs new ones
+            for (final var message : List.of(
+                    update.path("message"),
+                    update.path("channel_post"),
+                    update.path("callback_query").path("message"))) {
+                if (message instanceof ObjectNode node) {
+                    node.put("message_id", seq);
+                }
+            }
+            return update;
+        }
+    }
+}
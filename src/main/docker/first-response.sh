@@ -0,0 +1,66 @@
+#!/bin/sh
+####
+# Measures how long each image takes from `docker run` to answering its first update, against the Bot API stand-in of
+# the loadtest module, so the plain JVM image, the AppCDS image with warm-up and the native image can be compared.
+#
+# Build the images and the stand-in:
+#
+# ./mvnw package -Dappcds && docker build -f src/main/docker/Dockerfile.jvm -t camel-tg-example-bot-jvm .
+# ./mvnw package -Dnative && docker build -f src/main/docker/Dockerfile.native -t camel-tg-example-bot-native .
+# ./mvnw -f loadtest/pom.xml package
+#
+# Start the stand-in, which queues a /start update every second, and run the script in another shell:
+#
+# java -jar loadtest/target/loadtest.jar --rate=1 --warmup=0s --duration=1h --latency=0ms
+# src/main/docker/first-response.sh camel-tg-example-bot-jvm camel-tg-example-bot-native
+#
+# Every configuration is started RUNS (5) times. The script prints, per configuration, the median wall-clock time to
+# the first answer and the median of tg_startup_first_response_seconds, which counts from process start.
+###
+set -eu
+
+JVM_IMAGE=${1:?JVM image}
+NATIVE_IMAGE=${2:?native image}
+RUNS=${RUNS:-5}
+STAND_IN=${STAND_IN:-http://localhost:8081}
+
+now_ms() {
+  echo $(($(date +%s%N) / 1000000))
+}
+
+median() {
+  sort -n | awk '{ v[NR] = $1 } END { print v[int((NR + 1) / 2)] }'
+}
+
+# Prints the wall-clock milliseconds and the reported seconds of one run
+run_once() {
+  started=$(now_ms)
+  container=$(docker run -d --rm --network host \
+    -e TG_BASE_URI="$STAND_IN" -e TG_AUTH_TOKEN=first-response -e TG_PAYMENT_TOKEN=first-response \
+    -e TG_JOURNAL_DIR=/tmp/journal "$@")
+  reported=""
+  while [ -z "$reported" ]; do
+    reported=$(curl -fs http://localhost:8080/q/metrics 2>/dev/null \
+      | awk '/^tg_startup_first_response_seconds/ { print $2 }') || true
+    [ -n "$reported" ] || sleep 0.05
+  done
+  echo "$(($(now_ms) - started)) $reported"
+  docker stop "$container" >/dev/null
+}
+
+measure() {
+  name=$1
+  shift
+  results=$(for i in $(seq "$RUNS"); do run_once "$@"; done)
+  wall=$(echo "$results" | cut -d' ' -f1 | median)
+  reported=$(echo "$results" | cut -d' ' -f2 | median)
+  printf '| %-26s | %8s ms | %8s s |\n' "$name" "$wall" "$reported"
+}
+
+printf '| %-26s | %11s | %10s |\n' "Image" "Wall clock" "Reported"
+printf '|%s|%s|%s|\n' "----------------------------" "-------------" "------------"
+measure "JVM" -e TG_WARM_UP_ENABLED=false \
+  -e JAVA_OPTS_APPEND="-Dquarkus.http.host=0.0.0.0 -Djava.util.logging.manager=org.jboss.logmanager.LogManager" \
+  "$JVM_IMAGE"
+measure "JVM with AppCDS and warm-up" "$JVM_IMAGE"
+measure "Native" "$NATIVE_IMAGE"
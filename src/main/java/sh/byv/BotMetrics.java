@@ -0,0 +1,248 @@
+package sh.byv;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.TimeGauge;
+import io.micrometer.core.instrument.Timer;
+import io.quarkus.runtime.StartupEvent;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.camel.component.telegram.model.EditMessageTextMessage;
+import org.apache.camel.component.telegram.model.IncomingCallbackQuery;
+import org.apache.camel.component.telegram.model.IncomingMessage;
+import org.apache.camel.component.telegram.model.OutgoingCallbackQueryMessage;
+import org.apache.camel.component.telegram.model.OutgoingTextMessage;
+import org.apache.camel.component.telegram.model.SendChatActionMessage;
+import org.apache.camel.component.telegram.model.payments.AnswerPreCheckoutQueryMessage;
+import org.apache.camel.component.telegram.model.payments.AnswerShippingQueryMessage;
+import org.apache.camel.component.telegram.model.payments.CreateInvoiceLinkMessage;
+import org.apache.camel.component.telegram.model.payments.GetMyStarBalanceMessage;
+import org.apache.camel.component.telegram.model.payments.GetStarTransactionsMessage;
+import org.apache.camel.component.telegram.model.payments.PreCheckoutQuery;
+import org.apache.camel.component.telegram.model.payments.RefundStarPaymentMessage;
+import org.apache.camel.component.telegram.model.payments.SendInvoiceMessage;
+import org.apache.camel.component.telegram.model.payments.ShippingQuery;
+
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Hot-path instrumentation: processing time per update type and callback, latency and outcome per Bot API method,
+ * time from receipt to completion per dispatch priority against service level objectives, and gauges over the
+ * dispatcher, the invoice link pool, the balance cache, the coalescer and the ingress journal. Timers are resolved
+ * once and cached, so recording costs a map lookup and a histogram update.
+ */
+@Slf4j
+@ApplicationScoped
+@RequiredArgsConstructor
+public class BotMetrics {
+
+    static final String OTHER = "other";
+    // Telegram cancels a payment whose pre-checkout query is not answered within this time
+    static final Duration PAYMENT_DEADLINE = Duration.ofSeconds(10);
+
+    static final Duration[] INGRESS_SLOS = {
+        Duration.ofMillis(100), Duration.ofMillis(500), Duration.ofSeconds(1), Duration.ofSeconds(5), PAYMENT_DEADLINE
+    };
+
+    final MeterRegistry registry;
+
+    final Map<String, Timer[]> updateTimers = new ConcurrentHashMap<>();
+    final Map<String, Timer[]> callbackTimers = new ConcurrentHashMap<>();
+    final Map<String, Timer[]> callTimers = new ConcurrentHashMap<>();
+    final Map<String, Timer[]> ingressTimers = new ConcurrentHashMap<>();
+    final AtomicBoolean firstResponse = new AtomicBoolean();
+
+    enum Outcome {
+        OK("ok"),
+        ERROR("error"),
+        RATE_LIMITED("rate_limited");
+
+        final String tag;
+
+        Outcome(final String tag) {
+            this.tag = tag;
+        }
+    }
+
+    void registerGauges(
+            @Observes final StartupEvent event,
+            final ChatDispatcher dispatcher,
+            final InvoiceLinkPool invoiceLinks,
+            final StarBalanceCache balanceCache,
+            final OutboundCoalescer coalescer,
+            final IngressJournal journal,
+            final ClusterCoordinator cluster) {
+        for (final var priority : ChatDispatcher.Priority.values()) {
+            Gauge.builder("tg.dispatch.queued", dispatcher, chats -> chats.queued(priority))
+                    .description("Updates waiting behind an earlier update of their chat")
+                    .tag("priority", priority.tag)
+                    .register(registry);
+            Gauge.builder("tg.dispatch.in-flight", dispatcher, chats -> chats.inFlight(priority))
+                    .description("Updates running")
+                    .tag("priority", priority.tag)
+                    .register(registry);
+            Gauge.builder("tg.dispatch.busy-chats", dispatcher, chats -> chats.busyChats(priority))
+                    .description("Chats with an update running or waiting")
+                    .tag("priority", priority.tag)
+                    .register(registry);
+            FunctionCounter.builder("tg.dispatch.rejected", dispatcher, chats -> chats.rejected(priority))
+                    .description("Updates refused because their chat had too many queued")
+                    .tag("priority", priority.tag)
+                    .register(registry);
+            Gauge.builder("tg.journal.backlog", journal, ingress -> ingress.backlog(priority))
+                    .description("Logged updates not yet handed to the dispatcher")
+                    .tag("priority", priority.tag)
+                    .register(registry);
+        }
+        Gauge.builder("tg.journal.watermark", journal, IngressJournal::watermark)
+                .description("Sequence up to which every logged update is processed")
+                .register(registry);
+        if (cluster.enabled()) {
+            Gauge.builder("tg.cluster.members", cluster, ClusterCoordinator::size)
+                    .description("Live nodes sharing the chats")
+                    .register(registry);
+            Gauge.builder("tg.cluster.leader", cluster, node -> node.leader() ? 1 : 0)
+                    .description("Whether this node holds the ingress lease")
+                    .register(registry);
+        }
+        for (final var template : InvoiceLinkPool.Template.values()) {
+            Gauge.builder("tg.invoice-link-pool.available", invoiceLinks, pool -> pool.available(template))
+                    .tag("template", template.name().toLowerCase())
+                    .register(registry);
+        }
+        FunctionCounter.builder("tg.star-balance.lookups", balanceCache, StarBalanceCache::hits)
+                .tag("result", "hit")
+                .register(registry);
+        FunctionCounter.builder("tg.star-balance.lookups", balanceCache, StarBalanceCache::misses)
+                .tag("result", "miss")
+                .register(registry);
+        FunctionCounter.builder("tg.star-balance.lookups", balanceCache, StarBalanceCache::coalesced)
+                .tag("result", "coalesced")
+                .register(registry);
+        FunctionCounter.builder("tg.coalesce.saved", coalescer, OutboundCoalescer::droppedChatActions)
+                .tag("reason", "chat_action")
+                .register(registry);
+        FunctionCounter.builder("tg.coalesce.saved", coalescer, OutboundCoalescer::mergedCalls)
+                .tag("reason", "merged")
+                .register(registry);
+    }
+
+    /**
+     * Records the processing time of an update, and of its callback data for callback queries.
+     */
+    public void recordUpdate(final Object update, final long startedAt, final Throwable failure) {
+        final var elapsed = System.nanoTime() - startedAt;
+        final var outcome = failure == null ? Outcome.OK : Outcome.ERROR;
+        if (failure == null && !firstResponse.get() && firstResponse.compareAndSet(false, true)) {
+            final var uptime = ManagementFactory.getRuntimeMXBean().getUptime();
+            log.info("First update answered {}ms after JVM start", uptime);
+            TimeGauge.builder("tg.startup.first-response", () -> uptime, TimeUnit.MILLISECONDS)
+                    .description("Time from JVM start to the first update answered")
+                    .register(registry);
+        }
+        timer(updateTimers, "tg.updates", "type", updateTypeOf(update), outcome).record(elapsed, TimeUnit.NANOSECONDS);
+        if (update instanceof IncomingCallbackQuery callbackQuery) {
+            final var data = TransactionReport.pageOf(callbackQuery.getData()) != null
+                    ? TransactionReport.PAGE_PREFIX + "page"
+                    : TelegramRoutes.CALLBACKS.contains(callbackQuery.getData()) ? callbackQuery.getData() : OTHER;
+            timer(callbackTimers, "tg.callbacks", "data", data, outcome).record(elapsed, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Records the time from receiving an update to finishing it, and counts high-priority updates that took longer
+     * than Telegram waits for a pre-checkout answer.
+     */
+    public void recordIngress(final ChatDispatcher.Priority priority, final long receivedAt, final Throwable failure) {
+        final var elapsed = System.nanoTime() - receivedAt;
+        final var outcome = failure == null ? Outcome.OK : Outcome.ERROR;
+        timer(ingressTimers, "tg.ingress.latency", "priority", priority.tag, outcome, INGRESS_SLOS)
+                .record(elapsed, TimeUnit.NANOSECONDS);
+        if (priority == ChatDispatcher.Priority.HIGH && elapsed > PAYMENT_DEADLINE.toNanos()) {
+            registry.counter("tg.ingress.deadline-missed").increment();
+        }
+    }
+
+    /**
+     * Records one attempt of a Bot API call, from handing it to the producer to its response.
+     */
+    public void recordCall(final Object body, final long startedAt, final Outcome outcome) {
+        timer(callTimers, "tg.api.calls", "method", methodOf(body), outcome)
+                .record(System.nanoTime() - startedAt, TimeUnit.NANOSECONDS);
+    }
+
+    Timer timer(
+            final Map<String, Timer[]> timers,
+            final String name,
+            final String tag,
+            final String value,
+            final Outcome outcome,
+            final Duration... serviceLevelObjectives) {
+        final var byOutcome = timers.computeIfAbsent(value, v -> new Timer[Outcome.values().length]);
+        var timer = byOutcome[outcome.ordinal()];
+        if (timer == null) {
+            // Racing registrations resolve to the same meter, so publishing it without a lock is safe
+            timer = Timer.builder(name)
+                    .tag(tag, value)
+                    .tag("outcome", outcome.tag)
+                    .publishPercentileHistogram()
+                    .serviceLevelObjectives(serviceLevelObjectives)
+                    .register(registry);
+            byOutcome[outcome.ordinal()] = timer;
+        }
+        return timer;
+    }
+
+    static String updateTypeOf(final Object update) {
+        if (update instanceof IncomingMessage incomingMessage) {
+            if (incomingMessage.getSuccessfulPayment() != null) {
+                return "successful_payment";
+            } else if (incomingMessage.getRefundedPayment() != null) {
+                return "refunded_payment";
+            }
+            return "message";
+        } else if (update instanceof IncomingCallbackQuery) {
+            return "callback_query";
+        } else if (update instanceof ShippingQuery) {
+            return "shipping_query";
+        } else if (update instanceof PreCheckoutQuery) {
+            return "pre_checkout_query";
+        }
+        return OTHER;
+    }
+
+    static String methodOf(final Object body) {
+        if (body instanceof String || body instanceof OutgoingTextMessage) {
+            return "sendMessage";
+        } else if (body instanceof SendChatActionMessage) {
+            return "sendChatAction";
+        } else if (body instanceof EditMessageTextMessage) {
+            return "editMessageText";
+        } else if (body instanceof SendInvoiceMessage) {
+            return "sendInvoice";
+        } else if (body instanceof CreateInvoiceLinkMessage) {
+            return "createInvoiceLink";
+        } else if (body instanceof OutgoingCallbackQueryMessage) {
+            return "answerCallbackQuery";
+        } else if (body instanceof AnswerPreCheckoutQueryMessage) {
+            return "answerPreCheckoutQuery";
+        } else if (body instanceof AnswerShippingQueryMessage) {
+            return "answerShippingQuery";
+        } else if (body instanceof RefundStarPaymentMessage) {
+            return "refundStarPayment";
+        } else if (body instanceof GetStarTransactionsMessage) {
+            return "getStarTransactions";
+        } else if (body instanceof GetMyStarBalanceMessage) {
+            return "getMyStarBalance";
+        }
+        return OTHER;
+    }
+}
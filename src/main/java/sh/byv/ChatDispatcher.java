@@ -0,0 +1,350 @@
+package sh.byv;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.enterprise.context.ApplicationScoped;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.camel.component.telegram.model.IncomingCallbackQuery;
+import org.apache.camel.component.telegram.model.IncomingMessage;
+import org.apache.camel.component.telegram.model.payments.PreCheckoutQuery;
+import org.apache.camel.component.telegram.model.payments.ShippingQuery;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * Dispatches updates keyed by chat id. An update of an idle chat starts right away, and one of a busy chat waits in
+ * the chat's queue until the updates before it have completed, so updates of a single chat are handled in arrival
+ * order while updates of different chats run side by side. A task returns a future and the chat moves on only once it
+ * completes, without holding a worker while the task waits on Telegram.
+ *
+ * <p>Tasks start either on a work-stealing pool or, in virtual mode, on a new virtual thread per task. In both modes
+ * a semaphore caps the number of updates running at once. Only an update starting on an idle chat takes a permit,
+ * which is handed down the chat's queue and released once the chat runs out of work, so a chat holds at most one
+ * permit however many of its updates wait. Each chat queues at most {@code max-queued-per-chat} updates; further
+ * ones are refused until it catches up, so a flooding chat cannot fill the dispatcher.
+ *
+ * <p>Payment-critical updates, pre-checkout and shipping queries and successful or refunded payments, go to a separate
+ * high-priority group with its own reserved workers and in-flight cap, so they keep moving while chat traffic
+ * saturates the best-effort group. Order is kept per chat within each group.
+ *
+ * <p>Updates another node of the cluster forwards go to groups of their own, which share the workers but not the
+ * in-flight caps and are not chained per chat: the sending node hands over one update of a chat at a time and waits
+ * for it, and chaining the update behind this node's own updates could leave two nodes waiting on each other.
+ */
+@Slf4j
+@ApplicationScoped
+public class ChatDispatcher {
+
+    @ConfigProperty(name = "tg.dispatch.workers")
+    Optional<Integer> workers;
+
+    @ConfigProperty(name = "tg.dispatch.executor")
+    Mode mode;
+
+    @ConfigProperty(name = "tg.dispatch.max-in-flight")
+    int maxInFlight;
+
+    @ConfigProperty(name = "tg.dispatch.max-queued-per-chat")
+    int maxQueuedPerChat;
+
+    @ConfigProperty(name = "tg.dispatch.priority.workers")
+    int priorityWorkers;
+
+    @ConfigProperty(name = "tg.dispatch.priority.max-in-flight")
+    int priorityMaxInFlight;
+
+    enum Mode {
+        WORK_STEALING,
+        VIRTUAL
+    }
+
+    enum Priority {
+        HIGH("high"),
+        BEST_EFFORT("best_effort");
+
+        final String tag;
+
+        Priority(final String tag) {
+            this.tag = tag;
+        }
+    }
+
+    ChatGroup bestEffort;
+    ChatGroup high;
+    ChatGroup forwardedBestEffort;
+    ChatGroup forwardedHigh;
+
+    @PostConstruct
+    void init() {
+        final var parallelism = workers.orElse(Runtime.getRuntime().availableProcessors());
+        final ExecutorService executor =
+                switch (mode) {
+                    case WORK_STEALING -> new ForkJoinPool(
+                            parallelism, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+                    case VIRTUAL -> Executors.newThreadPerTaskExecutor(
+                            Thread.ofVirtual().name("tg-update-", 0).factory());
+                };
+        bestEffort = new ChatGroup(Priority.BEST_EFFORT, executor, maxInFlight);
+        // Platform workers of its own in both modes, so that the group never waits for a carrier or worker thread
+        high = new ChatGroup(
+                Priority.HIGH,
+                new ForkJoinPool(priorityWorkers, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true),
+                priorityMaxInFlight);
+        forwardedBestEffort = new ChatGroup(Priority.BEST_EFFORT, bestEffort.executor, maxInFlight);
+        forwardedHigh = new ChatGroup(Priority.HIGH, high.executor, priorityMaxInFlight);
+        log.info(
+                "Dispatching per chat on {} executor, max in flight {}, high priority on {} workers, max in flight {}",
+                mode,
+                maxInFlight,
+                priorityWorkers,
+                priorityMaxInFlight);
+    }
+
+    @PreDestroy
+    void shutdown() throws InterruptedException {
+        for (final var group : List.of(high, bestEffort)) {
+            group.executor.shutdown();
+            if (!group.executor.awaitTermination(10, TimeUnit.SECONDS)) {
+                log.warn("Dispatcher {} group did not drain in time", group.priority.tag);
+            }
+        }
+    }
+
+    /**
+     * Queues the task behind the earlier updates of its chat in the update's priority group, blocking while the chat
+     * is idle and too many updates of the group are running. Returns false, without running the task, if the chat
+     * already has the most updates queued that it may have.
+     */
+    public boolean dispatch(final Object update, final Supplier<? extends CompletionStage<?>> task)
+            throws InterruptedException {
+        return groupOf(priorityOf(update)).submit(chatIdOf(update), task, true);
+    }
+
+    /**
+     * Queues the task behind the earlier updates of its chat in the update's priority group unless the chat's queue is
+     * full, or the chat is idle and too many updates of the group are running.
+     */
+    public boolean offer(final Object update, final Supplier<? extends CompletionStage<?>> task) {
+        try {
+            return groupOf(priorityOf(update)).submit(chatIdOf(update), task, false);
+        } catch (InterruptedException e) {
+            // Never waits without blocking
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Starts the task of an update forwarded by another node right away, outside the per-chat order, unless too many
+     * forwarded updates of its priority are running.
+     */
+    public boolean offerForwarded(final Object update, final Supplier<? extends CompletionStage<?>> task) {
+        try {
+            return forwardedGroupOf(priorityOf(update)).submit(null, task, false);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    ChatGroup groupOf(final Priority priority) {
+        return priority == Priority.HIGH ? high : bestEffort;
+    }
+
+    ChatGroup forwardedGroupOf(final Priority priority) {
+        return priority == Priority.HIGH ? forwardedHigh : forwardedBestEffort;
+    }
+
+    int queued(final Priority priority) {
+        return groupOf(priority).queued.intValue();
+    }
+
+    long rejected(final Priority priority) {
+        return groupOf(priority).rejected.sum();
+    }
+
+    int inFlight(final Priority priority) {
+        var inFlight = 0;
+        for (final var group : List.of(groupOf(priority), forwardedGroupOf(priority))) {
+            inFlight += group.maxInFlight - group.inFlight.availablePermits();
+        }
+        return inFlight;
+    }
+
+    int busyChats(final Priority priority) {
+        return groupOf(priority).chats.size();
+    }
+
+    /**
+     * Classifies an update: anything a payment depends on, where Telegram waits on the bot or the ledger has to
+     * change, is high priority.
+     */
+    static Priority priorityOf(final Object update) {
+        if (update instanceof PreCheckoutQuery || update instanceof ShippingQuery) {
+            return Priority.HIGH;
+        } else if (update instanceof IncomingMessage incomingMessage
+                && (incomingMessage.getSuccessfulPayment() != null || incomingMessage.getRefundedPayment() != null)) {
+            return Priority.HIGH;
+        }
+        return Priority.BEST_EFFORT;
+    }
+
+    static String chatIdOf(final Object update) {
+        if (update instanceof IncomingMessage incomingMessage && incomingMessage.getChat() != null) {
+            return incomingMessage.getChat().getId();
+        } else if (update instanceof IncomingCallbackQuery callbackQuery) {
+            if (callbackQuery.getMessage() != null) {
+                return callbackQuery.getMessage().getChat().getId();
+            }
+            return String.valueOf(callbackQuery.getFrom().getId());
+        } else if (update instanceof PreCheckoutQuery preCheckoutQuery) {
+            return String.valueOf(preCheckoutQuery.getFrom().getId());
+        } else if (update instanceof ShippingQuery shippingQuery) {
+            return String.valueOf(shippingQuery.getFrom().getId());
+        }
+        return null;
+    }
+
+    final class ChatGroup {
+
+        final Priority priority;
+        final ExecutorService executor;
+        final Semaphore inFlight;
+        final int maxInFlight;
+        // Busy chats, each with the updates waiting behind its running one; changed only under the lock
+        final Map<String, ArrayDeque<Supplier<? extends CompletionStage<?>>>> chats = new ConcurrentHashMap<>();
+        final ReentrantLock lock = new ReentrantLock();
+        final LongAdder queued = new LongAdder();
+        final LongAdder rejected = new LongAdder();
+
+        ChatGroup(final Priority priority, final ExecutorService executor, final int maxInFlight) {
+            this.priority = priority;
+            this.executor = executor;
+            this.maxInFlight = maxInFlight;
+            inFlight = new Semaphore(maxInFlight);
+        }
+
+        /**
+         * Queues the task behind the chat's running update, or starts it if the chat is idle once a permit is free. A
+         * task without a chat always starts on its own permit.
+         */
+        boolean submit(final String chatId, final Supplier<? extends CompletionStage<?>> task, final boolean block)
+                throws InterruptedException {
+            while (true) {
+                if (chatId != null) {
+                    final var admitted = queueBehind(chatId, task);
+                    if (admitted != null) {
+                        return admitted;
+                    }
+                }
+                if (block) {
+                    inFlight.acquire();
+                } else if (!inFlight.tryAcquire()) {
+                    return false;
+                }
+                if (chatId == null || claim(chatId)) {
+                    run(chatId, task);
+                    return true;
+                }
+                // Another update of the chat started while the permit was awaited, so this one queues behind it
+                inFlight.release();
+            }
+        }
+
+        /**
+         * Queues the task if the chat is busy and returns whether it was taken, or returns null if the chat is idle.
+         */
+        Boolean queueBehind(final String chatId, final Supplier<? extends CompletionStage<?>> task) {
+            lock.lock();
+            try {
+                final var waiting = chats.get(chatId);
+                if (waiting == null) {
+                    return null;
+                }
+                if (waiting.size() >= maxQueuedPerChat) {
+                    rejected.increment();
+                    return false;
+                }
+                waiting.add(task);
+                queued.increment();
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        boolean claim(final String chatId) {
+            lock.lock();
+            try {
+                return chats.putIfAbsent(chatId, new ArrayDeque<>()) == null;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void run(final String chatId, final Supplier<? extends CompletionStage<?>> task) {
+            try {
+                executor.execute(() -> start(task).whenComplete((result, e) -> next(chatId)));
+            } catch (RejectedExecutionException e) {
+                log.warn("Dispatcher {} is shut down, dropping an update", priority.tag);
+                inFlight.release();
+            }
+        }
+
+        /**
+         * Hands the permit to the next update of the chat, or releases it and forgets the chat if none is waiting.
+         */
+        void next(final String chatId) {
+            Supplier<? extends CompletionStage<?>> next = null;
+            if (chatId != null) {
+                lock.lock();
+                try {
+                    final var waiting = chats.get(chatId);
+                    next = waiting.poll();
+                    if (next == null) {
+                        chats.remove(chatId);
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            }
+            if (next == null) {
+                inFlight.release();
+                return;
+            }
+            queued.decrement();
+            run(chatId, next);
+        }
+
+        CompletableFuture<Void> start(final Supplier<? extends CompletionStage<?>> task) {
+            try {
+                // A failed task must not stop the chat, so the returned future always completes normally
+                return task.get().toCompletableFuture().<Void>handle((result, e) -> {
+                    if (e != null) {
+                        log.error("Dispatcher {} task failed", priority.tag, e);
+                    }
+                    return null;
+                });
+            } catch (Exception e) {
+                log.error("Dispatcher {} task failed", priority.tag, e);
+                return CompletableFuture.completedFuture(null);
+            }
+        }
+    }
+}
@@ -0,0 +1,427 @@
+package sh.byv;
+
+import io.vertx.ext.web.Router;
+import io.vertx.ext.web.RoutingContext;
+import io.vertx.ext.web.handler.BodyHandler;
+import jakarta.annotation.PreDestroy;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.camel.CamelContext;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Clustered mode for running several instances of the bot against one token. Nodes share a directory: each one
+ * refreshes a heartbeat file there, and the node holding the lock on the lease file is the ingress owner, the only
+ * one polling Telegram. Chats are spread over the live nodes by a consistent hash ring on the chat id, so a node
+ * joining or leaving moves only its share of chats.
+ *
+ * <p>Every update still goes through the journal and the dispatcher on the node that received it. The dispatched
+ * task forwards the update to the chat's owner and completes when the owner has processed it, so the next update of
+ * the chat is forwarded only after that, which keeps per-chat order even while chats move between nodes. The owner
+ * runs a forwarded update at once, outside its own per-chat order, so two nodes never wait on each other. An owner
+ * that cannot be reached or is too busy is retried once the ring has been refreshed, which sends the update to
+ * whichever node owns the chat by then, and the update fails if no owner takes it or the owner does not answer in
+ * time; it is never run on a node that does not own its chat. The bot-wide outbound budgets are shared evenly among
+ * the live nodes.
+ *
+ * <p>Only polling ingress is supported: webhook calls could reach any node, and two nodes forwarding updates of one
+ * chat at the same time would lose their order, so a node refuses to start with both. Back-offs Telegram asks for
+ * with a 429 are shared through the directory and applied by every node on its next heartbeat. Per-chat limits are
+ * not shared: a chat's ledger callbacks are answered by the ledger node and its other updates by the chat's owner,
+ * each within its own per-chat budget, so a chat busy with both may briefly see up to twice its rate until a 429
+ * holds both back.
+ *
+ * <p>The star ledger and balance are kept by one node, the owner of a reserved key on the ring, and every update that
+ * changes or reads them goes there instead of to its chat's owner, so reports and refunds see every payment. The
+ * sender still waits for each update of a chat, so this keeps per-chat order too. A node that takes the ledger over
+ * fetches the history again, since the payments before that went to another node.
+ */
+@Slf4j
+@ApplicationScoped
+@RequiredArgsConstructor
+public class ClusterCoordinator {
+
+    static final String LEASE_FILE = "ingress.lock";
+    static final String MEMBERS_DIR = "members";
+    static final String BACKOFF_DIR = "backoff";
+    static final String KIND_HEADER = "X-Update-Kind";
+    static final String SECRET_HEADER = "X-Cluster-Secret";
+    // Chat ids are numbers, so this never clashes with one
+    static final String LEDGER_KEY = "star-ledger";
+
+    final CamelContext camelContext;
+    final ChatDispatcher dispatcher;
+    final OutboundRateLimiter rateLimiter;
+    final StartupWarmUp warmUp;
+    final StarLedger ledger;
+    final StarBalanceCache balanceCache;
+
+    @ConfigProperty(name = "tg.cluster.enabled")
+    boolean enabled;
+
+    @ConfigProperty(name = "tg.cluster.dir")
+    Path dir;
+
+    @ConfigProperty(name = "tg.cluster.node-id")
+    Optional<String> nodeId;
+
+    @ConfigProperty(name = "tg.cluster.endpoint")
+    String endpoint;
+
+    @ConfigProperty(name = "tg.cluster.path")
+    String path;
+
+    @ConfigProperty(name = "tg.cluster.secret")
+    Optional<String> secret;
+
+    @ConfigProperty(name = "tg.cluster.heartbeat")
+    Duration heartbeat;
+
+    @ConfigProperty(name = "tg.cluster.expiry")
+    Duration expiry;
+
+    @ConfigProperty(name = "tg.cluster.virtual-nodes")
+    int virtualNodes;
+
+    @ConfigProperty(name = "tg.cluster.forward-retries")
+    int forwardRetries;
+
+    @ConfigProperty(name = "tg.cluster.forward-timeout")
+    Duration forwardTimeout;
+
+    @ConfigProperty(name = "tg.ingress.mode")
+    IngressMode ingressMode;
+
+    record Member(String id, String endpoint) {}
+
+    Member self;
+    volatile List<Member> members = List.of();
+    volatile TreeMap<Long, Member> ring = new TreeMap<>();
+    Boolean keepsLedger;
+    FileChannel leaseChannel;
+    FileLock lease;
+    boolean ingressStarted;
+    byte[] expectedSecret;
+    HttpClient client;
+    ScheduledExecutorService scheduler;
+    volatile Function<Object, CompletionStage<?>> processor;
+
+    public boolean enabled() {
+        return enabled;
+    }
+
+    public boolean leader() {
+        return lease != null;
+    }
+
+    public int size() {
+        return members.size();
+    }
+
+    void init(@Observes final Router router) {
+        if (!enabled) {
+            return;
+        }
+        if (ingressMode == IngressMode.WEBHOOK) {
+            throw new IllegalStateException("tg.cluster.enabled is not supported with tg.ingress.mode=webhook");
+        }
+        // The endpoint shares the public HTTP port and takes payment updates, so it is never left open
+        expectedSecret = secret.filter(value -> !value.isBlank())
+                .orElseThrow(() -> new IllegalStateException("tg.cluster.secret is required in clustered mode"))
+                .getBytes(StandardCharsets.UTF_8);
+        router.post(path)
+                .handler(BodyHandler.create().setBodyLimit(1024 * 1024))
+                .handler(this::receive);
+    }
+
+    /**
+     * Joins the cluster and returns the function the journal feeder hands updates to, which runs the processor here
+     * or forwards the update to the node owning its chat. Until this node holds the lease, the route with the given
+     * id, the Telegram poller, stays stopped.
+     */
+    public Function<Object, CompletionStage<?>> start(
+            final Function<Object, CompletionStage<?>> processor, final String ingressRouteId) {
+        this.processor = processor;
+        try {
+            Files.createDirectories(dir.resolve(MEMBERS_DIR));
+            Files.createDirectories(dir.resolve(BACKOFF_DIR));
+            leaseChannel =
+                    FileChannel.open(dir.resolve(LEASE_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        self = new Member(nodeId.orElse("node-" + ProcessHandle.current().pid()), endpoint);
+        client = HttpClient.newBuilder()
+                .executor(Executors.newVirtualThreadPerTaskExecutor())
+                .build();
+        scheduler = Executors.newSingleThreadScheduledExecutor(
+                Thread.ofPlatform().name("tg-cluster").daemon().factory());
+        rateLimiter.backOffListener = this::shareBackOff;
+        scheduler.scheduleWithFixedDelay(() -> tick(ingressRouteId), 0, heartbeat.toNanos(), TimeUnit.NANOSECONDS);
+        log.info("Joining cluster in {} as {} at {}", dir.toAbsolutePath(), self.id(), self.endpoint());
+        return this::route;
+    }
+
+    @PreDestroy
+    void shutdown() throws IOException {
+        if (scheduler == null) {
+            return;
+        }
+        scheduler.shutdownNow();
+        // Leaving explicitly lets the others take over the chats without waiting for the heartbeat to expire
+        Files.deleteIfExists(dir.resolve(MEMBERS_DIR).resolve(self.id()));
+        if (lease != null) {
+            lease.release();
+        }
+        leaseChannel.close();
+    }
+
+    void tick(final String ingressRouteId) {
+        try {
+            Files.writeString(dir.resolve(MEMBERS_DIR).resolve(self.id()), self.endpoint());
+            refreshMembers();
+            applyBackOffs();
+            if (lease == null) {
+                lease = leaseChannel.tryLock();
+                if (lease != null) {
+                    log.info("{} holds the ingress lease", self.id());
+                }
+            }
+            if (lease != null && !ingressStarted && warmUp.done()) {
+                camelContext.getRouteController().startRoute(ingressRouteId);
+                ingressStarted = true;
+            }
+        } catch (Exception e) {
+            // Retried on the next heartbeat
+            log.warn("Cluster heartbeat failed", e);
+        }
+    }
+
+    void refreshMembers() throws IOException {
+        final var now = System.currentTimeMillis();
+        final var live = new ArrayList<Member>();
+        try (final var files = Files.list(dir.resolve(MEMBERS_DIR))) {
+            for (final var file : files.sorted().toList()) {
+                try {
+                    if (now - Files.getLastModifiedTime(file).toMillis() <= expiry.toMillis()) {
+                        live.add(new Member(file.getFileName().toString(), Files.readString(file)));
+                    }
+                } catch (IOException e) {
+                    // The node left while the directory was listed
+                }
+            }
+        }
+        if (live.equals(members)) {
+            return;
+        }
+        final var nextRing = new TreeMap<Long, Member>();
+        for (final var member : live) {
+            for (int i = 0; i < virtualNodes; i++) {
+                nextRing.put(hash(member.id() + "#" + i), member);
+            }
+        }
+        ring = nextRing;
+        members = List.copyOf(live);
+        rateLimiter.share(Math.max(1, live.size()));
+        log.info("Cluster members {}", live.stream().map(Member::id).toList());
+        final var keeps = ownerOf(LEDGER_KEY).equals(self);
+        if (keeps && Boolean.FALSE.equals(keepsLedger)) {
+            // Payments and refunds went to another node until now, so the copy held here is out of date
+            ledger.reset();
+            balanceCache.invalidate();
+            log.info("{} keeps the star ledger", self.id());
+        }
+        keepsLedger = keeps;
+    }
+
+    /**
+     * Records a back-off for the other nodes, one file per held bucket with the wall-clock millis it is held until.
+     */
+    void shareBackOff(final String key, final long untilMillis) {
+        final var target = dir.resolve(BACKOFF_DIR).resolve(key);
+        try {
+            // Written aside and moved into place, so that a node reading it never sees half a number
+            final var written = Files.writeString(
+                    dir.resolve(BACKOFF_DIR).resolve(key + "." + self.id()), Long.toString(untilMillis));
+            Files.move(written, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.warn("Could not share the back-off of {}", key, e);
+        }
+    }
+
+    void applyBackOffs() throws IOException {
+        final var now = System.currentTimeMillis();
+        try (final var files = Files.list(dir.resolve(BACKOFF_DIR))) {
+            for (final var file : files.toList()) {
+                final var key = file.getFileName().toString();
+                if (key.contains(".")) {
+                    // Still being written
+                    continue;
+                }
+                try {
+                    final var until = Long.parseLong(Files.readString(file));
+                    if (until > now) {
+                        rateLimiter.holdUntil(key, until);
+                    } else {
+                        Files.deleteIfExists(file);
+                    }
+                } catch (IOException | NumberFormatException e) {
+                    // Replaced or removed by another node while the directory was listed
+                }
+            }
+        }
+    }
+
+    Member ownerOf(final String chatId) {
+        final var current = ring;
+        if (current.isEmpty() || chatId == null) {
+            return self;
+        }
+        final Map.Entry<Long, Member> entry = current.ceilingEntry(hash(chatId));
+        return entry != null ? entry.getValue() : current.firstEntry().getValue();
+    }
+
+    CompletionStage<?> route(final Object update) {
+        return route(update, 0);
+    }
+
+    CompletionStage<Object> route(final Object update, final int attempt) {
+        final var owner =
+                ownerOf(TelegramRoutes.usesLedger(update) ? LEDGER_KEY : ChatDispatcher.chatIdOf(update));
+        final var kind = IngressJournal.kindOf(update);
+        if (owner.equals(self) || kind == null) {
+            return processLocally(update);
+        }
+        final byte[] body;
+        try {
+            body = IngressJournal.MAPPER.writeValueAsBytes(update);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        final var request = HttpRequest.newBuilder(URI.create(owner.endpoint() + path))
+                .timeout(forwardTimeout)
+                .header("Content-Type", "application/json")
+                .header(KIND_HEADER, kind.name())
+                .header(SECRET_HEADER, secret.orElseThrow())
+                .POST(HttpRequest.BodyPublishers.ofByteArray(body))
+                .build();
+        return client.sendAsync(request, HttpResponse.BodyHandlers.discarding())
+                .handle((response, e) -> {
+                    if (e != null
+                            && (e instanceof HttpTimeoutException || e.getCause() instanceof HttpTimeoutException)) {
+                        // The owner may still be running it, so sending it anywhere again could run it twice
+                        throw new IllegalStateException("Update timed out on " + owner.id(), e);
+                    }
+                    return response;
+                })
+                .<Object>thenCompose(response -> {
+                    if (response != null && response.statusCode() == 200) {
+                        return CompletableFuture.completedFuture(null);
+                    }
+                    if (response != null && response.statusCode() == 500) {
+                        // The owner ran the update and it failed, running it again could repeat its side effects
+                        return CompletableFuture.failedFuture(
+                                new IllegalStateException("Update failed on " + owner.id()));
+                    }
+                    if (attempt >= forwardRetries) {
+                        // Running it here could overtake earlier updates of the chat the owner is still handling
+                        return CompletableFuture.failedFuture(
+                                new IllegalStateException("Could not forward update to " + owner.id()));
+                    }
+                    // By the next heartbeat a node that is gone has expired and its chats have moved
+                    return CompletableFuture.runAsync(
+                                    () -> {},
+                                    CompletableFuture.delayedExecutor(heartbeat.toNanos(), TimeUnit.NANOSECONDS))
+                            .thenCompose(ignored -> route(update, attempt + 1));
+                });
+    }
+
+    CompletionStage<Object> processLocally(final Object update) {
+        return processor.apply(update).thenApply(Object.class::cast);
+    }
+
+    /**
+     * Runs an update forwarded by another node and answers once it is processed. The sender forwards the next update
+     * of the chat only after that answer, so the update is not queued behind this node's own updates of the chat.
+     */
+    void receive(final RoutingContext context) {
+        final var token = context.request().getHeader(SECRET_HEADER);
+        if (token == null || !MessageDigest.isEqual(expectedSecret, token.getBytes(StandardCharsets.UTF_8))) {
+            context.response().setStatusCode(401).end();
+            return;
+        }
+        final Object update;
+        try {
+            final var kind = IngressJournal.Kind.valueOf(context.request().getHeader(KIND_HEADER));
+            update = IngressJournal.MAPPER.readValue(context.body().buffer().getBytes(), kind.type);
+        } catch (IOException | RuntimeException e) {
+            log.warn("Could not decode forwarded update", e);
+            context.response().setStatusCode(400).end();
+            return;
+        }
+        final var current = processor;
+        final var accepted = current != null
+                && dispatcher.offerForwarded(update, () -> {
+                    final CompletionStage<?> stage;
+                    try {
+                        stage = current.apply(update);
+                    } catch (RuntimeException e) {
+                        context.response().setStatusCode(500).end();
+                        throw e;
+                    }
+                    return stage.whenComplete((result, e) -> context.response()
+                            .setStatusCode(e == null ? 200 : 500)
+                            .end());
+                });
+        if (!accepted) {
+            context.response().setStatusCode(429).end();
+        }
+    }
+
+    /**
+     * 64-bit FNV-1a with a final avalanche step, so that near-identical keys such as virtual node names still land
+     * far apart on the ring.
+     */
+    static long hash(final String key) {
+        var hash = 0xcbf29ce484222325L;
+        for (final var b : key.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        return hash ^ (hash >>> 33);
+    }
+}
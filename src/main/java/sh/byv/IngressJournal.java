@@ -0,0 +1,628 @@
+package sh.byv;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.quarkus.runtime.configuration.MemorySize;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.enterprise.context.ApplicationScoped;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.camel.component.telegram.model.IncomingCallbackQuery;
+import org.apache.camel.component.telegram.model.IncomingMessage;
+import org.apache.camel.component.telegram.model.payments.PreCheckoutQuery;
+import org.apache.camel.component.telegram.model.payments.ShippingQuery;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.zip.CRC32C;
+
+/**
+ * Append-only ingress log between the Telegram consumer and the dispatcher. Every update is written to a
+ * memory-mapped segment before it is acknowledged, so it survives a crash or redeploy once the consumer moves the
+ * Telegram offset on; segments are forced to disk in batches on a short interval. A feeder thread per priority hands
+ * logged updates to the dispatcher, each from its own bounded backlog, so payment updates are not held up while chat
+ * traffic waits for the dispatcher. Each finished update is recorded so that the committed watermark, the highest
+ * sequence below which everything is processed, can advance. On startup, updates above the watermark that never
+ * finished are replayed, except those that could repeat a side effect such as a refund, and a window of recent update
+ * keys drops updates Telegram delivers twice.
+ *
+ * <p>A record is {@code length, crc32c, type, seq} followed, for updates, by the dedup key, the update kind and the
+ * update as JSON. A zero length or a CRC mismatch marks the end of the written part of a segment.
+ */
+@Slf4j
+@ApplicationScoped
+@RequiredArgsConstructor
+public class IngressJournal {
+
+    static final byte UPDATE = 1;
+    static final byte DONE = 2;
+    static final int HEADER_SIZE = 4 + 4 + 1 + 8;
+    static final String SEGMENT_PREFIX = "segment-";
+    static final String SEGMENT_SUFFIX = ".log";
+    static final String WATERMARK_FILE = "committed";
+    static final ObjectMapper MAPPER = new ObjectMapper()
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false)
+            .setSerializationInclusion(JsonInclude.Include.NON_NULL);
+
+    final ChatDispatcher dispatcher;
+    final BotMetrics metrics;
+
+    @ConfigProperty(name = "tg.journal.enabled")
+    boolean enabled;
+
+    @ConfigProperty(name = "tg.journal.dir")
+    Path dir;
+
+    @ConfigProperty(name = "tg.journal.segment-size")
+    MemorySize segmentSize;
+
+    @ConfigProperty(name = "tg.journal.flush-interval")
+    Duration flushInterval;
+
+    @ConfigProperty(name = "tg.journal.dedup-window")
+    int dedupWindow;
+
+    @ConfigProperty(name = "tg.journal.max-backlog")
+    int maxBacklog;
+
+    enum Kind {
+        MESSAGE(IncomingMessage.class),
+        CALLBACK_QUERY(IncomingCallbackQuery.class),
+        PRE_CHECKOUT_QUERY(PreCheckoutQuery.class),
+        SHIPPING_QUERY(ShippingQuery.class);
+
+        final Class<?> type;
+
+        Kind(final Class<?> type) {
+            this.type = type;
+        }
+    }
+
+    record Entry(long seq, Object update, ChatDispatcher.Priority priority, long receivedAt) {
+
+        Entry(final long seq, final Object update) {
+            this(seq, update, ChatDispatcher.priorityOf(update), System.nanoTime());
+        }
+    }
+
+    /**
+     * The logged updates of one priority waiting for the dispatcher, and the permits bounding them.
+     */
+    static final class Backlog {
+
+        final BlockingQueue<Entry> entries = new LinkedBlockingQueue<>();
+        final Semaphore capacity;
+
+        Backlog(final int permits) {
+            capacity = new Semaphore(permits);
+        }
+    }
+
+    static final class Segment {
+
+        final Path path;
+        final FileChannel channel;
+        final MappedByteBuffer buffer;
+        // Highest sequence of any record in it, so it can go once the watermark has passed it
+        long lastSeq;
+
+        Segment(final Path path, final FileChannel channel, final MappedByteBuffer buffer) {
+            this.path = path;
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+    }
+
+    final ReentrantLock writeLock = new ReentrantLock();
+    final ReentrantLock commitLock = new ReentrantLock();
+    final List<Segment> segments = new ArrayList<>();
+    final List<Segment> unflushed = new ArrayList<>();
+    final Set<Long> finishedAboveWatermark = new HashSet<>();
+
+    Map<String, Boolean> recentKeys;
+    Backlog bestEffort;
+    Backlog high;
+    Segment active;
+    Segment spare;
+    long nextSeq = 1;
+    long nextSegment = 1;
+    volatile long watermark;
+    long persistedWatermark;
+    FileChannel watermarkChannel;
+    ScheduledExecutorService flusher;
+    List<Thread> feeders = List.of();
+    volatile Function<Object, CompletionStage<?>> processor;
+
+    @PostConstruct
+    void init() throws IOException {
+        if (!enabled) {
+            return;
+        }
+        recentKeys = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, Boolean> eldest) {
+                return size() > dedupWindow;
+            }
+        };
+        Files.createDirectories(dir);
+        watermarkChannel = FileChannel.open(
+                dir.resolve(WATERMARK_FILE),
+                StandardOpenOption.CREATE,
+                StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        final var stored = ByteBuffer.allocate(8);
+        if (watermarkChannel.read(stored, 0) == 8) {
+            watermark = stored.flip().getLong();
+        }
+        persistedWatermark = watermark;
+
+        final var pending = recover();
+        final var replayed = new ArrayList<Entry>(pending.size());
+        final var skipped = new ArrayList<Entry>();
+        for (final var record : pending.entrySet()) {
+            final var entry = new Entry(record.getKey(), decode(record.getValue()));
+            (TelegramRoutes.replayable(entry.update()) ? replayed : skipped).add(entry);
+        }
+        final var replayedHigh = (int) replayed.stream()
+                .filter(entry -> entry.priority() == ChatDispatcher.Priority.HIGH)
+                .count();
+        // Replayed updates may leave a backlog over its bound until they are handed on
+        bestEffort = new Backlog(maxBacklog - (replayed.size() - replayedHigh));
+        high = new Backlog(maxBacklog - replayedHigh);
+        for (final var entry : replayed) {
+            backlogOf(entry.priority()).entries.add(entry);
+        }
+        if (active == null) {
+            roll();
+        }
+        for (final var entry : skipped) {
+            // It may have taken effect before the crash, and running it again could take effect twice
+            log.warn("Not replaying update {}, it may have been handled already", keyOf(entry.update()));
+            finished(entry.seq());
+        }
+
+        flusher = Executors.newSingleThreadScheduledExecutor(
+                Thread.ofPlatform().name("tg-journal-flusher").daemon().factory());
+        flusher.scheduleWithFixedDelay(
+                this::flush, flushInterval.toNanos(), flushInterval.toNanos(), TimeUnit.NANOSECONDS);
+        flusher.execute(this::prepareSpare);
+        log.info(
+                "Ingress journal in {}, committed up to {}, replaying {} updates",
+                dir.toAbsolutePath(),
+                watermark,
+                replayed.size());
+    }
+
+    @PreDestroy
+    void shutdown() throws IOException {
+        if (!enabled) {
+            return;
+        }
+        feeders.forEach(Thread::interrupt);
+        flusher.shutdown();
+        flush();
+        for (final var segment : segments) {
+            segment.channel.close();
+        }
+        if (spare != null) {
+            // Left empty, so recovery reads nothing from it and writes into it next time
+            spare.channel.close();
+        }
+        watermarkChannel.close();
+    }
+
+    /**
+     * Starts handing logged updates, replayed ones first, to the processor through the dispatcher.
+     */
+    public void start(final Function<Object, CompletionStage<?>> processor) {
+        this.processor = processor;
+        if (!enabled) {
+            return;
+        }
+        feeders = List.of(
+                Thread.ofPlatform().name("tg-journal-feeder").daemon().start(() -> feed(bestEffort)),
+                Thread.ofPlatform().name("tg-journal-priority-feeder").daemon().start(() -> feed(high)));
+    }
+
+    /**
+     * Logs the update and queues it for processing, blocking while the backlog is full.
+     */
+    public void append(final Object update) throws InterruptedException {
+        if (!enabled) {
+            dispatch(new Entry(0, update));
+            return;
+        }
+        final var backlog = backlogOf(ChatDispatcher.priorityOf(update));
+        backlog.capacity.acquire();
+        write(update, backlog);
+    }
+
+    /**
+     * Logs the update and queues it for processing unless the backlog is full.
+     */
+    public boolean offer(final Object update) {
+        if (!enabled) {
+            return processor != null && dispatcher.offer(update, task(new Entry(0, update)));
+        }
+        final var backlog = backlogOf(ChatDispatcher.priorityOf(update));
+        if (!backlog.capacity.tryAcquire()) {
+            return false;
+        }
+        write(update, backlog);
+        return true;
+    }
+
+    Backlog backlogOf(final ChatDispatcher.Priority priority) {
+        return priority == ChatDispatcher.Priority.HIGH ? high : bestEffort;
+    }
+
+    public int backlog(final ChatDispatcher.Priority priority) {
+        return enabled ? backlogOf(priority).entries.size() : 0;
+    }
+
+    public long watermark() {
+        return watermark;
+    }
+
+    void write(final Object update, final Backlog backlog) {
+        final var kind = kindOf(update);
+        if (kind == null) {
+            // Not something the processor acts on, so nothing is lost by not logging it
+            backlog.capacity.release();
+            backlog.entries.add(new Entry(0, update));
+            return;
+        }
+        final var key = keyOf(update);
+        final byte[] json;
+        try {
+            json = MAPPER.writeValueAsBytes(update);
+        } catch (IOException e) {
+            backlog.capacity.release();
+            throw new UncheckedIOException(e);
+        }
+        writeLock.lock();
+        try {
+            if (recentKeys.put(key, Boolean.TRUE) != null) {
+                log.debug("Dropping duplicate update {}", key);
+                backlog.capacity.release();
+                return;
+            }
+            final var seq = nextSeq++;
+            final var keyBytes = key.getBytes(StandardCharsets.UTF_8);
+            final var body = ByteBuffer.allocate(2 + keyBytes.length + 1 + json.length)
+                    .putShort((short) keyBytes.length)
+                    .put(keyBytes)
+                    .put((byte) kind.ordinal())
+                    .put(json);
+            writeRecord(UPDATE, seq, body.array());
+            backlog.entries.add(new Entry(seq, update));
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    void finished(final long seq) {
+        if (seq == 0) {
+            return;
+        }
+        commitLock.lock();
+        try {
+            finishedAboveWatermark.add(seq);
+            var next = watermark;
+            while (finishedAboveWatermark.remove(next + 1)) {
+                next++;
+            }
+            watermark = next;
+        } finally {
+            commitLock.unlock();
+        }
+        writeLock.lock();
+        try {
+            writeRecord(DONE, seq, new byte[0]);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    void feed(final Backlog backlog) {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                final var entry = backlog.entries.take();
+                if (entry.seq() != 0) {
+                    backlog.capacity.release();
+                }
+                dispatch(entry);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    void dispatch(final Entry entry) throws InterruptedException {
+        if (!dispatcher.dispatch(entry.update(), task(entry))) {
+            // The chat has a full queue of updates waiting, so this one is dropped rather than hold up other chats
+            log.warn("Dropping update {} of a chat with too many updates queued", keyOf(entry.update()));
+            finished(entry, new RejectedExecutionException("Too many updates queued for the chat"));
+        }
+    }
+
+    Supplier<CompletionStage<?>> task(final Entry entry) {
+        return () -> {
+            final CompletionStage<?> stage;
+            try {
+                stage = processor.apply(entry.update());
+            } catch (RuntimeException e) {
+                finished(entry, e);
+                throw e;
+            }
+            // A failed update is not retried, the dispatcher logs the failure
+            return stage.whenComplete((result, e) -> finished(entry, e));
+        };
+    }
+
+    void finished(final Entry entry, final Throwable failure) {
+        metrics.recordIngress(entry.priority(), entry.receivedAt(), failure);
+        finished(entry.seq());
+    }
+
+    void writeRecord(final byte type, final long seq, final byte[] body) {
+        final var length = 1 + 8 + body.length;
+        if (active.buffer.remaining() < HEADER_SIZE + body.length + 4) {
+            roll();
+        }
+        final var crc = new CRC32C();
+        crc.update(type);
+        crc.update(ByteBuffer.allocate(8).putLong(0, seq));
+        crc.update(body);
+        active.buffer
+                .putInt(length)
+                .putInt((int) crc.getValue())
+                .put(type)
+                .putLong(seq)
+                .put(body);
+        // Terminate the written part in case the rest of the segment holds an older torn record
+        active.buffer.putInt(active.buffer.position(), 0);
+        // Done records come out of order, and one above the watermark still has to be read back after a crash
+        active.lastSeq = Math.max(active.lastSeq, seq);
+    }
+
+    /**
+     * Moves writing on to the next segment. It is normally the spare the flusher created ahead of time, so that a
+     * write on the webhook's event loop does not create and map a file, and is only created here if none is ready.
+     */
+    void roll() {
+        var segment = spare;
+        spare = null;
+        if (segment == null) {
+            segment = createSegment();
+        }
+        if (active != null) {
+            // The previous segment still has to be forced once more before it is left alone
+            unflushed.add(active);
+        }
+        active = segment;
+        segments.add(segment);
+        if (flusher != null) {
+            try {
+                flusher.execute(this::prepareSpare);
+            } catch (RejectedExecutionException e) {
+                // Shutting down, the next roll creates the segment itself
+            }
+        }
+    }
+
+    void prepareSpare() {
+        final Segment segment;
+        try {
+            segment = createSegment();
+        } catch (UncheckedIOException e) {
+            log.error("Could not create the next ingress journal segment", e);
+            return;
+        }
+        writeLock.lock();
+        try {
+            if (spare == null) {
+                spare = segment;
+                return;
+            }
+        } finally {
+            writeLock.unlock();
+        }
+        try {
+            segment.channel.close();
+            Files.deleteIfExists(segment.path);
+        } catch (IOException e) {
+            log.warn("Could not remove unused ingress journal segment {}", segment.path.getFileName(), e);
+        }
+    }
+
+    Segment createSegment() {
+        try {
+            final long number;
+            writeLock.lock();
+            try {
+                number = nextSegment++;
+            } finally {
+                writeLock.unlock();
+            }
+            final var path = dir.resolve(SEGMENT_PREFIX + "%020d".formatted(number) + SEGMENT_SUFFIX);
+            final var channel = FileChannel.open(
+                    path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            return new Segment(
+                    path, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize.asLongValue()));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Forces written records to disk, persists the watermark and removes segments that are fully processed.
+     */
+    void flush() {
+        final List<Segment> toForce;
+        final List<Segment> committed = new ArrayList<>();
+        writeLock.lock();
+        try {
+            toForce = new ArrayList<>(unflushed);
+            toForce.add(active);
+            unflushed.clear();
+            final var current = watermark;
+            for (final var segment : segments) {
+                if (segment != active && segment.lastSeq <= current) {
+                    committed.add(segment);
+                }
+            }
+            segments.removeAll(committed);
+        } finally {
+            writeLock.unlock();
+        }
+        try {
+            for (final var segment : toForce) {
+                segment.buffer.force();
+            }
+            final var current = watermark;
+            if (current != persistedWatermark) {
+                watermarkChannel.write(ByteBuffer.allocate(8).putLong(0, current), 0);
+                watermarkChannel.force(false);
+                persistedWatermark = current;
+            }
+            for (final var segment : committed) {
+                segment.channel.close();
+                Files.deleteIfExists(segment.path);
+            }
+        } catch (IOException e) {
+            log.error("Could not flush ingress journal", e);
+        }
+    }
+
+    /**
+     * Scans the segments, rebuilding the dedup window, and returns the updates above the watermark that never
+     * finished, in order.
+     */
+    TreeMap<Long, byte[]> recover() throws IOException {
+        final var pending = new TreeMap<Long, byte[]>();
+        final List<Path> paths;
+        try (final var files = Files.list(dir)) {
+            paths = files.filter(path -> path.getFileName().toString().startsWith(SEGMENT_PREFIX)
+                            && path.getFileName().toString().endsWith(SEGMENT_SUFFIX))
+                    .sorted()
+                    .toList();
+        }
+        for (final var path : paths) {
+            final var name = path.getFileName().toString();
+            nextSegment = Math.max(
+                    nextSegment,
+                    Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()))
+                            + 1);
+            final var channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            final var buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+            final var segment = new Segment(path, channel, buffer);
+            while (buffer.remaining() >= HEADER_SIZE) {
+                final var start = buffer.position();
+                final var length = buffer.getInt();
+                if (length < 9 || length > buffer.remaining() - 4) {
+                    buffer.position(start);
+                    break;
+                }
+                final var crc = buffer.getInt();
+                final var record = new byte[length];
+                buffer.get(record);
+                final var check = new CRC32C();
+                check.update(record);
+                if ((int) check.getValue() != crc) {
+                    log.warn("Ingress journal {} ends with a torn record at {}", path.getFileName(), start);
+                    buffer.position(start);
+                    break;
+                }
+                final var data = ByteBuffer.wrap(record);
+                final var type = data.get();
+                final var seq = data.getLong();
+                nextSeq = Math.max(nextSeq, seq + 1);
+                segment.lastSeq = Math.max(segment.lastSeq, seq);
+                if (type == UPDATE) {
+                    final var keyBytes = new byte[data.getShort()];
+                    data.get(keyBytes);
+                    recentKeys.put(new String(keyBytes, StandardCharsets.UTF_8), Boolean.TRUE);
+                    if (seq > watermark) {
+                        final var update = new byte[data.remaining()];
+                        data.get(update);
+                        pending.put(seq, update);
+                    }
+                } else if (type == DONE) {
+                    pending.remove(seq);
+                    if (seq > watermark) {
+                        finishedAboveWatermark.add(seq);
+                    }
+                }
+            }
+            segments.add(segment);
+            active = segment;
+        }
+        // Records finished before the crash still move the watermark past them
+        var next = watermark;
+        while (finishedAboveWatermark.remove(next + 1)) {
+            next++;
+        }
+        watermark = next;
+        return pending;
+    }
+
+    static Object decode(final byte[] update) throws IOException {
+        final var kind = Kind.values()[update[0]];
+        return MAPPER.readValue(update, 1, update.length - 1, kind.type);
+    }
+
+    static Kind kindOf(final Object update) {
+        for (final var kind : Kind.values()) {
+            if (kind.type.isInstance(update)) {
+                return kind;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns an id the update keeps when Telegram delivers it again.
+     */
+    static String keyOf(final Object update) {
+        if (update instanceof IncomingMessage incomingMessage) {
+            return "m:" + ChatDispatcher.chatIdOf(incomingMessage) + ":" + incomingMessage.getMessageId();
+        } else if (update instanceof IncomingCallbackQuery callbackQuery) {
+            return "c:" + callbackQuery.getId();
+        } else if (update instanceof PreCheckoutQuery preCheckoutQuery) {
+            return "p:" + preCheckoutQuery.getId();
+        } else if (update instanceof ShippingQuery shippingQuery) {
+            return "s:" + shippingQuery.getId();
+        }
+        return null;
+    }
+}
@@ -0,0 +1,9 @@
+package sh.byv;
+
+/**
+ * How updates reach the bot: long polling of {@code getUpdates} or webhook calls from Telegram.
+ */
+public enum IngressMode {
+    POLLING,
+    WEBHOOK
+}
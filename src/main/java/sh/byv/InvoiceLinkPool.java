@@ -0,0 +1,130 @@
+package sh.byv;
+
+import jakarta.enterprise.context.ApplicationScoped;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.camel.component.telegram.model.MessageResultString;
+import org.apache.camel.component.telegram.model.payments.CreateInvoiceLinkMessage;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of invoice links created ahead of time, one queue per invoice template, each link carrying its own order
+ * id. Handing out a link is a dequeue; a timer route tops the queues back up to the configured size and drops links
+ * older than the configured age. When a queue runs dry the link is created on the spot.
+ */
+@Slf4j
+@ApplicationScoped
+@RequiredArgsConstructor
+public class InvoiceLinkPool {
+
+    enum Template {
+        INVOICE,
+        STARS
+    }
+
+    record PooledLink(String link, String orderId, long createdAt) {}
+
+    final TelegramSender sender;
+    final MessageTemplates templates;
+
+    @ConfigProperty(name = "tg.invoice-link-pool.size")
+    int size;
+
+    @ConfigProperty(name = "tg.invoice-link-pool.max-age")
+    Duration maxAge;
+
+    final Map<Template, Queue> queues = new ConcurrentHashMap<>();
+
+    static final class Queue {
+
+        final ConcurrentLinkedQueue<PooledLink> links = new ConcurrentLinkedQueue<>();
+        final AtomicInteger available = new AtomicInteger();
+        final AtomicInteger creating = new AtomicInteger();
+    }
+
+    /**
+     * Hands out a pooled link of the template, falling back to creating one when none is left.
+     */
+    public CompletableFuture<String> take(final Template template) {
+        final var queue = queueOf(template);
+        PooledLink pooled;
+        while ((pooled = queue.links.poll()) != null) {
+            queue.available.decrementAndGet();
+            if (!isStale(pooled)) {
+                log.debug("Pooled invoice link, {}", pooled);
+                return CompletableFuture.completedFuture(pooled.link());
+            }
+        }
+        log.debug("Invoice link pool {} is empty, creating link", template);
+        return create(template, UUID.randomUUID().toString());
+    }
+
+    /**
+     * Drops stale links and starts creating links until every queue is back at the target size.
+     */
+    public void refill() {
+        for (final var template : Template.values()) {
+            final var queue = queueOf(template);
+            PooledLink head;
+            while ((head = queue.links.peek()) != null && isStale(head)) {
+                if (queue.links.remove(head)) {
+                    queue.available.decrementAndGet();
+                }
+            }
+            while (queue.available.get() + queue.creating.get() < size) {
+                queue.creating.incrementAndGet();
+                final var orderId = UUID.randomUUID().toString();
+                create(template, orderId).whenComplete((link, e) -> {
+                    queue.creating.decrementAndGet();
+                    if (e == null && link != null) {
+                        queue.links.offer(new PooledLink(link, orderId, System.nanoTime()));
+                        queue.available.incrementAndGet();
+                    }
+                });
+            }
+        }
+    }
+
+    int available(final Template template) {
+        return queueOf(template).available.get();
+    }
+
+    Queue queueOf(final Template template) {
+        return queues.computeIfAbsent(template, t -> new Queue());
+    }
+
+    boolean isStale(final PooledLink pooled) {
+        return System.nanoTime() - pooled.createdAt() > maxAge.toNanos();
+    }
+
+    CompletableFuture<String> create(final Template template, final String orderId) {
+        return switch (template) {
+            case INVOICE -> createInvoiceLink(orderId);
+            case STARS -> createStarsLink(orderId);
+        };
+    }
+
+    CompletableFuture<String> createInvoiceLink(final String orderId) {
+        return createLink(templates.invoiceLink(orderId));
+    }
+
+    CompletableFuture<String> createStarsLink(final String orderId) {
+        return createLink(templates.starsLink(orderId));
+    }
+
+    CompletableFuture<String> createLink(final CreateInvoiceLinkMessage createInvoiceLinkMessage) {
+        log.debug("{}", createInvoiceLinkMessage);
+
+        return sender.send(null, createInvoiceLinkMessage, MessageResultString.class)
+                .thenApply(MessageResultString::getResult)
+                .whenComplete((invoiceLink, e) -> log.debug("Invoice link, {}", invoiceLink));
+    }
+}
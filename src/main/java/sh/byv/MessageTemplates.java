@@ -0,0 +1,132 @@
+package sh.byv;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.context.ApplicationScoped;
+import org.apache.camel.component.telegram.model.InlineKeyboardButton;
+import org.apache.camel.component.telegram.model.InlineKeyboardMarkup;
+import org.apache.camel.component.telegram.model.payments.AnswerShippingQueryMessage;
+import org.apache.camel.component.telegram.model.payments.CreateInvoiceLinkMessage;
+import org.apache.camel.component.telegram.model.payments.LabeledPrice;
+import org.apache.camel.component.telegram.model.payments.SendInvoiceMessage;
+import org.apache.camel.component.telegram.model.payments.ShippingOption;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import java.util.List;
+
+/**
+ * The static parts of outbound messages, built once at startup: the payment menu keyboard, invoice prices and tips,
+ * and shipping options. Each send only creates the small envelope with its per-request fields, since the Telegram
+ * producer sets the chat id on the message it is given and so messages themselves cannot be shared.
+ */
+@ApplicationScoped
+public class MessageTemplates {
+
+    static final String TITLE = "Camel Framework";
+    static final String DESCRIPTION = "Camel is an Open Source integration framework";
+
+    static final List<LabeledPrice> INVOICE_PRICES = List.of(new LabeledPrice("Total", 100 * 100));
+    static final List<Integer> SUGGESTED_TIPS = List.of(1000, 5000, 10000);
+    static final int MAX_TIP = 50000;
+    static final List<LabeledPrice> STARS_PRICES = List.of(new LabeledPrice("Total", 1));
+    static final List<ShippingOption> SHIPPING_OPTIONS = List.of(
+            new ShippingOption(
+                    "car", "Car", List.of(new LabeledPrice("Today", 10000), new LabeledPrice("Tomorrow", 5000))),
+            new ShippingOption(
+                    "bike", "Bike", List.of(new LabeledPrice("Today", 5000), new LabeledPrice("Tomorrow", 2500))));
+
+    @ConfigProperty(name = "tg.payment.token")
+    String paymentToken;
+
+    InlineKeyboardMarkup paymentMenu;
+
+    @PostConstruct
+    void init() {
+        final var keyboardBuilder = InlineKeyboardMarkup.builder();
+        addButton(keyboardBuilder, "Pay via provider", TelegramRoutes.VIA_PROVIDER);
+        addButton(keyboardBuilder, "Pay via invoice link", TelegramRoutes.INVOICE_LINK);
+        addButton(keyboardBuilder, "Pay by Telegram Stars", TelegramRoutes.TELEGRAM_STARS);
+        addButton(keyboardBuilder, "Pay by Telegram Stars via invoice link", TelegramRoutes.STARS_LINK);
+        addButton(keyboardBuilder, "Refund recent transaction", TelegramRoutes.REFUND_RECENT_TX);
+        addButton(keyboardBuilder, "Get star balance", TelegramRoutes.STAR_BALANCE);
+        addButton(keyboardBuilder, "Get non-refunded transactions", TelegramRoutes.NON_REFUNDED_TX);
+        paymentMenu = keyboardBuilder.build();
+    }
+
+    static void addButton(
+            final InlineKeyboardMarkup.Builder keyboardBuilder, final String text, final String callbackData) {
+        keyboardBuilder.addRow(List.of(InlineKeyboardButton.builder()
+                .text(text)
+                .callbackData(callbackData)
+                .build()));
+    }
+
+    public InlineKeyboardMarkup paymentMenu() {
+        return paymentMenu;
+    }
+
+    public SendInvoiceMessage invoice(final String orderId) {
+        final var sendInvoiceMessage = new SendInvoiceMessage();
+        sendInvoiceMessage.setTitle(TITLE);
+        sendInvoiceMessage.setDescription(DESCRIPTION);
+        sendInvoiceMessage.setPayload(orderId);
+        sendInvoiceMessage.setProviderToken(paymentToken);
+        sendInvoiceMessage.setCurrency("RUB");
+        sendInvoiceMessage.setMaxTipAmount(MAX_TIP);
+        sendInvoiceMessage.setSuggestedTipAmounts(SUGGESTED_TIPS);
+        sendInvoiceMessage.setPrices(INVOICE_PRICES);
+        sendInvoiceMessage.setNeedEmail(Boolean.TRUE);
+        sendInvoiceMessage.setSendEmailToProvider(Boolean.TRUE);
+        sendInvoiceMessage.setFlexible(Boolean.TRUE);
+
+        // Provider specific data field, receipt info, etc
+        sendInvoiceMessage.setProviderData(null);
+        return sendInvoiceMessage;
+    }
+
+    public SendInvoiceMessage starsInvoice(final String orderId) {
+        final var sendInvoiceMessage = new SendInvoiceMessage();
+        sendInvoiceMessage.setTitle(TITLE);
+        sendInvoiceMessage.setDescription(DESCRIPTION);
+        sendInvoiceMessage.setPayload(orderId);
+        // Pass an empty string for payments in Telegram Stars
+        sendInvoiceMessage.setProviderToken("");
+        sendInvoiceMessage.setCurrency(StarLedger.STARS_CURRENCY);
+        sendInvoiceMessage.setPrices(STARS_PRICES);
+        return sendInvoiceMessage;
+    }
+
+    public CreateInvoiceLinkMessage invoiceLink(final String orderId) {
+        final var createInvoiceLinkMessage = new CreateInvoiceLinkMessage();
+        createInvoiceLinkMessage.setTitle(TITLE);
+        createInvoiceLinkMessage.setDescription(DESCRIPTION);
+        createInvoiceLinkMessage.setPayload(orderId);
+        createInvoiceLinkMessage.setProviderToken(paymentToken);
+        createInvoiceLinkMessage.setCurrency("RUB");
+        createInvoiceLinkMessage.setMaxTipAmount(MAX_TIP);
+        createInvoiceLinkMessage.setSuggestedTipAmounts(SUGGESTED_TIPS);
+        createInvoiceLinkMessage.setPrices(INVOICE_PRICES);
+        createInvoiceLinkMessage.setNeedEmail(Boolean.TRUE);
+        createInvoiceLinkMessage.setSendEmailToProvider(Boolean.TRUE);
+        createInvoiceLinkMessage.setFlexible(Boolean.TRUE);
+
+        // Provider specific data field, receipt info, etc
+        createInvoiceLinkMessage.setProviderData(null);
+        return createInvoiceLinkMessage;
+    }
+
+    public CreateInvoiceLinkMessage starsLink(final String orderId) {
+        final var createInvoiceLinkMessage = new CreateInvoiceLinkMessage();
+        createInvoiceLinkMessage.setTitle(TITLE);
+        createInvoiceLinkMessage.setDescription(DESCRIPTION);
+        createInvoiceLinkMessage.setPayload(orderId);
+        // Pass an empty string for payments in Telegram Stars
+        createInvoiceLinkMessage.setProviderToken("");
+        createInvoiceLinkMessage.setCurrency(StarLedger.STARS_CURRENCY);
+        createInvoiceLinkMessage.setPrices(STARS_PRICES);
+        return createInvoiceLinkMessage;
+    }
+
+    public AnswerShippingQueryMessage shippingOptions(final String queryId) {
+        return new AnswerShippingQueryMessage(queryId, true, SHIPPING_OPTIONS, null);
+    }
+}
@@ -0,0 +1,297 @@
+package sh.byv;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.enterprise.context.ApplicationScoped;
+import lombok.RequiredArgsConstructor;
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.builder.ExchangeBuilder;
+import org.apache.camel.component.telegram.model.EditMessageTextMessage;
+import org.apache.camel.component.telegram.model.MessageResult;
+import org.apache.camel.component.telegram.model.OutgoingTextMessage;
+import org.apache.camel.component.telegram.model.SendChatActionMessage;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiFunction;
+
+/**
+ * Coalesces small outbound calls per chat. Interim calls, chat actions and plain text edits, are held for a short
+ * window in case a follow-up makes them redundant. A plain text arriving within it sends them at once, reduced: a held
+ * chat action is dropped since a message follows, and a held edit takes the text in place of its own, so "Creating
+ * invoice link..." followed by the link becomes a single edit. Any other call, such as an invoice, hands the held
+ * calls on first and then goes out alongside them. A chat action is also dropped while the same action is still
+ * showing, and held edits of one message collapse into the last one. Texts themselves are never held, so the reply
+ * is not delayed; coalesced calls are sent in submission order, and merged calls share one response.
+ */
+@ApplicationScoped
+@RequiredArgsConstructor
+public class OutboundCoalescer {
+
+    final CamelContext camelContext;
+
+    @ConfigProperty(name = "tg.coalesce.window")
+    Duration window;
+
+    @ConfigProperty(name = "tg.coalesce.chat-action-ttl")
+    Duration chatActionTtl;
+
+    @ConfigProperty(name = "tg.coalesce.max-chats")
+    int maxChats;
+
+    Map<String, ChatState> chats;
+    final ReentrantLock chatsLock = new ReentrantLock();
+    ScheduledExecutorService timer;
+
+    final LongAdder droppedChatActions = new LongAdder();
+    final LongAdder mergedCalls = new LongAdder();
+
+    @PostConstruct
+    void init() {
+        chats = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, ChatState> eldest) {
+                return size() > maxChats;
+            }
+        };
+        timer = Executors.newSingleThreadScheduledExecutor(
+                Thread.ofPlatform().name("tg-coalescer").daemon().factory());
+    }
+
+    @PreDestroy
+    void shutdown() {
+        timer.shutdownNow();
+    }
+
+    public boolean enabled() {
+        return !window.isZero();
+    }
+
+    public long droppedChatActions() {
+        return droppedChatActions.sum();
+    }
+
+    public long mergedCalls() {
+        return mergedCalls.sum();
+    }
+
+    /**
+     * Queues the call for the chat and returns a future completing with the response of the call it ends up in.
+     */
+    public CompletableFuture<Exchange> submit(
+            final String chatId,
+            final Object body,
+            final BiFunction<String, Object, CompletableFuture<Exchange>> transport) {
+        final var chat = chatState(chatId);
+        chat.lock.lock();
+        try {
+            chat.transport = transport;
+            final var call = new Call(body);
+            if (body instanceof SendChatActionMessage chatAction && isShowing(chat, chatAction)) {
+                droppedChatActions.increment();
+                call.completeAll(skipped());
+                return call.waiters.getFirst();
+            }
+            if (isInterim(body)) {
+                chat.pending.add(call);
+                if (chat.flush == null) {
+                    chat.flush = timer.schedule(() -> flush(chat), window.toNanos(), TimeUnit.NANOSECONDS);
+                }
+                return call.waiters.getFirst();
+            }
+            // A follow-up: whatever is held for the chat goes first, reduced together with the call if it is a text
+            if (chat.flush != null) {
+                chat.flush.cancel(false);
+            }
+            if (plainText(body) != null) {
+                chat.pending.add(call);
+                flushLocked(chat);
+                return call.waiters.getFirst();
+            }
+            flushLocked(chat, true);
+            chat.shownAction = null;
+            return transport.apply(chatId, body);
+        } finally {
+            chat.lock.unlock();
+        }
+    }
+
+    ChatState chatState(final String chatId) {
+        chatsLock.lock();
+        try {
+            return chats.computeIfAbsent(chatId, ChatState::new);
+        } finally {
+            chatsLock.unlock();
+        }
+    }
+
+    void flush(final ChatState chat) {
+        chat.lock.lock();
+        try {
+            flushLocked(chat);
+        } finally {
+            chat.lock.unlock();
+        }
+    }
+
+    void flushLocked(final ChatState chat) {
+        flushLocked(chat, false);
+    }
+
+    void flushLocked(final ChatState chat, final boolean messageFollows) {
+        chat.flush = null;
+        if (chat.pending.isEmpty()) {
+            return;
+        }
+        final var pending = chat.pending;
+        chat.pending = new ArrayList<>();
+        for (final var call : reduce(chat, pending, messageFollows)) {
+            enqueue(chat, call);
+        }
+    }
+
+    List<Call> reduce(final ChatState chat, final List<Call> pending, final boolean messageFollows) {
+        final var hasMessage = messageFollows
+                || pending.stream().anyMatch(call -> !(call.body instanceof SendChatActionMessage));
+        final var calls = new ArrayList<Call>();
+        for (final var call : pending) {
+            if (call.body instanceof SendChatActionMessage chatAction && (hasMessage || isShowing(chat, chatAction))) {
+                // A message is on its way or the same action is still shown, either way the action adds nothing
+                droppedChatActions.increment();
+                call.completeAll(skipped());
+                continue;
+            }
+            final var last = calls.isEmpty() ? null : calls.getLast();
+            final var merged = last == null ? null : merge(last.body, call.body);
+            if (merged != null) {
+                mergedCalls.increment();
+                last.body = merged;
+                last.waiters.addAll(call.waiters);
+            } else {
+                calls.add(call);
+            }
+        }
+        return calls;
+    }
+
+    void enqueue(final ChatState chat, final Call call) {
+        if (call.body instanceof SendChatActionMessage chatAction) {
+            chat.shownAction = chatAction.getAction();
+            chat.shownActionAt = System.nanoTime();
+        } else {
+            // Telegram clears the chat action once the bot sends a message
+            chat.shownAction = null;
+        }
+        final var transport = chat.transport;
+        chat.tail = chat.tail
+                .handle((exchange, e) -> null)
+                .thenCompose(ignored -> transport.apply(chat.chatId, call.body))
+                .whenComplete((exchange, e) -> {
+                    if (e != null) {
+                        call.waiters.forEach(waiter -> waiter.completeExceptionally(e));
+                    } else {
+                        call.completeAll(exchange);
+                    }
+                });
+    }
+
+    boolean isShowing(final ChatState chat, final SendChatActionMessage chatAction) {
+        return chat.shownAction == chatAction.getAction()
+                && System.nanoTime() - chat.shownActionAt < chatActionTtl.toNanos();
+    }
+
+    Exchange skipped() {
+        final var messageResult = new MessageResult();
+        messageResult.setOk(true);
+        return ExchangeBuilder.anExchange(camelContext).withBody(messageResult).build();
+    }
+
+    /**
+     * Whether the call is held in case a follow-up makes it redundant.
+     */
+    static boolean isInterim(final Object body) {
+        return body instanceof SendChatActionMessage
+                || (body instanceof EditMessageTextMessage edit && edit.getParseMode() == null);
+    }
+
+    /**
+     * Returns the single call equivalent to sending both bodies in order, or null if they cannot be combined.
+     */
+    static Object merge(final Object first, final Object second) {
+        final var secondText = plainText(second);
+        if (first instanceof EditMessageTextMessage edit && edit.getParseMode() == null) {
+            if (secondText != null) {
+                return new EditMessageTextMessage(
+                        edit.getChatId(),
+                        edit.getMessageId(),
+                        edit.getInlineMessageId(),
+                        secondText,
+                        null,
+                        edit.getDisableWebPagePreview(),
+                        edit.getReplyMarkup());
+            }
+            if (second instanceof EditMessageTextMessage next
+                    && next.getMessageId() != null
+                    && next.getMessageId().equals(edit.getMessageId())) {
+                return next;
+            }
+        }
+        return null;
+    }
+
+    static String plainText(final Object body) {
+        if (body instanceof String text) {
+            return text;
+        } else if (body instanceof OutgoingTextMessage message
+                && message.getReplyMarkup() == null
+                && message.getParseMode() == null
+                && message.getReplyToMessageId() == null) {
+            return message.getText();
+        }
+        return null;
+    }
+
+    static final class Call {
+
+        Object body;
+        final List<CompletableFuture<Exchange>> waiters = new ArrayList<>();
+
+        Call(final Object body) {
+            this.body = body;
+            waiters.add(new CompletableFuture<>());
+        }
+
+        void completeAll(final Exchange exchange) {
+            waiters.forEach(waiter -> waiter.complete(exchange));
+        }
+    }
+
+    static final class ChatState {
+
+        final String chatId;
+        final ReentrantLock lock = new ReentrantLock();
+        List<Call> pending = new ArrayList<>();
+        ScheduledFuture<?> flush;
+        // The last coalesced call handed on, which the next one is chained on to keep their order
+        CompletableFuture<?> tail = CompletableFuture.completedFuture(null);
+        BiFunction<String, Object, CompletableFuture<Exchange>> transport;
+        SendChatActionMessage.Action shownAction;
+        long shownActionAt;
+
+        ChatState(final String chatId) {
+            this.chatId = chatId;
+        }
+    }
+}
@@ -0,0 +1,300 @@
+package sh.byv;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.enterprise.context.ApplicationScoped;
+import org.apache.camel.component.telegram.model.OutgoingCallbackQueryMessage;
+import org.apache.camel.component.telegram.model.payments.AnswerPreCheckoutQueryMessage;
+import org.apache.camel.component.telegram.model.payments.AnswerShippingQueryMessage;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.regex.Pattern;
+
+/**
+ * Keeps outbound traffic within Telegram limits. Every call takes a permit from the global bucket, calls bound to a
+ * chat also take one from that chat's bucket, and answers to callback queries draw from a separate budget so they
+ * never queue behind bulk sends. Answers to pre-checkout and shipping queries, which a payment waits on, have a budget
+ * of their own, so a burst of button presses cannot hold them up. Calls bound to a chat book the chat's permit ahead,
+ * and only join the queue for the shared budget once the chat's permit falls due, so a burst on one chat never holds
+ * back the others. Each shared budget hands out its permits in arrival order, with one wake-up scheduled on a delay
+ * queue per permit instead of blocking the caller.
+ */
+@ApplicationScoped
+public class OutboundRateLimiter {
+
+    static final Pattern TOO_MANY_REQUESTS = Pattern.compile("responded: 429");
+    static final Pattern RETRY_AFTER = Pattern.compile("\"retry_after\"\\s*:\\s*(\\d+)");
+    // Keys of the shared budgets in back-offs; chat ids are numbers, so these never clash with one
+    static final String GLOBAL = "global";
+    static final String PRIORITY = "priority";
+    static final String PAYMENT = "payment";
+
+    @ConfigProperty(name = "tg.rate-limit.global")
+    int globalRate;
+
+    @ConfigProperty(name = "tg.rate-limit.priority")
+    int priorityRate;
+
+    @ConfigProperty(name = "tg.rate-limit.payment")
+    int paymentRate;
+
+    @ConfigProperty(name = "tg.rate-limit.per-chat")
+    int perChatRate;
+
+    @ConfigProperty(name = "tg.rate-limit.per-chat-burst")
+    int perChatBurst;
+
+    @ConfigProperty(name = "tg.rate-limit.max-chats")
+    int maxChats;
+
+    Budget global;
+    Budget priority;
+    Budget payment;
+    Map<String, TokenBucket> chats;
+    final ReentrantLock chatsLock = new ReentrantLock();
+    ScheduledExecutorService delayQueue;
+    // Told of every back-off with the key of the bucket held and the wall-clock millis it is held until
+    volatile BiConsumer<String, Long> backOffListener = (key, until) -> {};
+
+    @PostConstruct
+    void init() {
+        delayQueue = Executors.newSingleThreadScheduledExecutor(
+                Thread.ofPlatform().name("tg-rate-limiter").daemon().factory());
+        global = new Budget(new TokenBucket(globalRate, globalRate), delayQueue);
+        priority = new Budget(new TokenBucket(priorityRate, priorityRate), delayQueue);
+        payment = new Budget(new TokenBucket(paymentRate, paymentRate), delayQueue);
+        chats = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, TokenBucket> eldest) {
+                return size() > maxChats;
+            }
+        };
+    }
+
+    @PreDestroy
+    void shutdown() {
+        delayQueue.shutdownNow();
+    }
+
+    /**
+     * Returns a future that completes once the call may be sent. The chat's permit is booked first, and the call only
+     * queues for the shared permit when that one falls due, so calls waiting on one chat never hold back the others.
+     */
+    public CompletableFuture<Void> acquire(final String chatId, final Object body) {
+        final var shared = budgetOf(body);
+        final var permit = new CompletableFuture<Void>();
+        if (chatId == null || isPriority(body)) {
+            shared.acquire(permit);
+            return permit;
+        }
+        final var now = System.nanoTime();
+        final var delay = chatBucket(chatId).reserve(now) - now;
+        if (delay <= 0) {
+            shared.acquire(permit);
+        } else {
+            delayQueue.schedule(() -> shared.acquire(permit), delay, TimeUnit.NANOSECONDS);
+        }
+        return permit;
+    }
+
+    /**
+     * Shares the bot-wide budgets evenly among the given number of nodes, each of which sends its own chats' calls.
+     */
+    public void share(final int nodes) {
+        global.bucket = new TokenBucket(Math.max(1, globalRate / nodes), Math.max(1, globalRate / nodes));
+        priority.bucket = new TokenBucket(Math.max(1, priorityRate / nodes), Math.max(1, priorityRate / nodes));
+        payment.bucket = new TokenBucket(Math.max(1, paymentRate / nodes), Math.max(1, paymentRate / nodes));
+    }
+
+    /**
+     * Holds back the bucket that was exceeded until Telegram allows calls again.
+     */
+    public void backOff(final String chatId, final Object body, final long retryAfterSeconds) {
+        final var until = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(retryAfterSeconds);
+        final String key;
+        if (isPriority(body)) {
+            key = isPaymentAnswer(body) ? PAYMENT : PRIORITY;
+        } else {
+            key = chatId != null ? chatId : GLOBAL;
+        }
+        holdUntil(key, until);
+        backOffListener.accept(key, until);
+    }
+
+    /**
+     * Holds back the shared budget or chat with the given key until the given wall-clock time, in epoch millis.
+     */
+    public void holdUntil(final String key, final long untilMillis) {
+        final var until = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(untilMillis - System.currentTimeMillis());
+        switch (key) {
+            case GLOBAL -> global.bucket.blockUntil(until);
+            case PRIORITY -> priority.bucket.blockUntil(until);
+            case PAYMENT -> payment.bucket.blockUntil(until);
+            default -> chatBucket(key).blockUntil(until);
+        }
+    }
+
+    TokenBucket chatBucket(final String chatId) {
+        chatsLock.lock();
+        try {
+            return chats.computeIfAbsent(chatId, id -> new TokenBucket(perChatRate, perChatBurst));
+        } finally {
+            chatsLock.unlock();
+        }
+    }
+
+    Budget budgetOf(final Object body) {
+        if (isPaymentAnswer(body)) {
+            return payment;
+        }
+        return body instanceof OutgoingCallbackQueryMessage ? priority : global;
+    }
+
+    static boolean isPriority(final Object body) {
+        return isPaymentAnswer(body) || body instanceof OutgoingCallbackQueryMessage;
+    }
+
+    static boolean isPaymentAnswer(final Object body) {
+        return body instanceof AnswerPreCheckoutQueryMessage || body instanceof AnswerShippingQueryMessage;
+    }
+
+    /**
+     * Returns the delay Telegram asked for if the failure is a 429 response, or -1 otherwise.
+     */
+    static long retryAfterSeconds(final Throwable failure) {
+        if (failure == null || failure.getMessage() == null) {
+            return -1;
+        }
+        final var message = failure.getMessage();
+        if (!TOO_MANY_REQUESTS.matcher(message).find()) {
+            return -1;
+        }
+        final var retryAfter = RETRY_AFTER.matcher(message);
+        return retryAfter.find() ? Long.parseLong(retryAfter.group(1)) : 1;
+    }
+
+    /**
+     * A shared bucket and the calls queued for it, which are handed permits in arrival order. Only the head of the
+     * queue is scheduled, once for each permit, so queued calls cost nothing until their turn comes.
+     */
+    static final class Budget {
+
+        final ScheduledExecutorService delayQueue;
+        final ArrayDeque<CompletableFuture<Void>> waiters = new ArrayDeque<>();
+        final ReentrantLock lock = new ReentrantLock();
+        volatile TokenBucket bucket;
+        boolean wakeUpScheduled;
+
+        Budget(final TokenBucket bucket, final ScheduledExecutorService delayQueue) {
+            this.bucket = bucket;
+            this.delayQueue = delayQueue;
+        }
+
+        void acquire(final CompletableFuture<Void> permit) {
+            final List<CompletableFuture<Void>> granted;
+            lock.lock();
+            try {
+                waiters.add(permit);
+                // With a wake-up pending, earlier calls are still queued and this one waits behind them
+                granted = wakeUpScheduled ? List.of() : grant();
+            } finally {
+                lock.unlock();
+            }
+            granted.forEach(waiter -> waiter.complete(null));
+        }
+
+        void wakeUp() {
+            final List<CompletableFuture<Void>> granted;
+            lock.lock();
+            try {
+                wakeUpScheduled = false;
+                granted = grant();
+            } finally {
+                lock.unlock();
+            }
+            granted.forEach(waiter -> waiter.complete(null));
+        }
+
+        /**
+         * Takes the permits available now for the calls at the head of the queue, and schedules one wake-up for when
+         * the next permit is if calls are left. Called with the lock held.
+         */
+        List<CompletableFuture<Void>> grant() {
+            final var granted = new ArrayList<CompletableFuture<Void>>(1);
+            while (!waiters.isEmpty()) {
+                final var wait = bucket.tryAcquire(System.nanoTime());
+                if (wait > 0) {
+                    wakeUpScheduled = true;
+                    delayQueue.schedule(this::wakeUp, wait, TimeUnit.NANOSECONDS);
+                    break;
+                }
+                granted.add(waiters.poll());
+            }
+            return granted;
+        }
+    }
+
+    /**
+     * Lock-free token bucket kept as the theoretical arrival time of the next call (GCRA).
+     */
+    static final class TokenBucket {
+
+        final long interval;
+        final long tolerance;
+        final AtomicLong nextArrival = new AtomicLong(Long.MIN_VALUE);
+
+        TokenBucket(final int ratePerSecond, final int burst) {
+            interval = TimeUnit.SECONDS.toNanos(1) / ratePerSecond;
+            tolerance = interval * (burst - 1);
+        }
+
+        /**
+         * Reserves one permit no earlier than the given time and returns when it becomes available.
+         */
+        long reserve(final long earliest) {
+            while (true) {
+                final var current = nextArrival.get();
+                final var start = current == Long.MIN_VALUE ? earliest : Math.max(current, earliest);
+                if (nextArrival.compareAndSet(current, start + interval)) {
+                    return Math.max(earliest, start - tolerance);
+                }
+            }
+        }
+
+        /**
+         * Takes one permit if it is available at the given time, otherwise returns how long until the next one is,
+         * without booking it.
+         */
+        long tryAcquire(final long now) {
+            while (true) {
+                final var current = nextArrival.get();
+                final var start = current == Long.MIN_VALUE ? now : Math.max(current, now);
+                final var wait = start - tolerance - now;
+                if (wait > 0) {
+                    return wait;
+                }
+                if (nextArrival.compareAndSet(current, start + interval)) {
+                    return 0;
+                }
+            }
+        }
+
+        void blockUntil(final long until) {
+            nextArrival.accumulateAndGet(
+                    until + tolerance,
+                    (current, blocked) -> current == Long.MIN_VALUE ? blocked : Math.max(current, blocked));
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package sh.byv;
+
+import jakarta.enterprise.context.ApplicationScoped;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.camel.component.telegram.model.IncomingMessage;
+import org.apache.camel.component.telegram.model.payments.GetMyStarBalanceMessage;
+import org.apache.camel.component.telegram.model.payments.MessageResultStarAmount;
+import org.apache.camel.component.telegram.model.payments.StarAmount;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Short-lived cache of the bot's star balance. Concurrent lookups share a single in-flight
+ * {@link GetMyStarBalanceMessage} call, results are reused for the configured TTL, and star payments or refunds seen
+ * by the processor drop the cached value.
+ */
+@Slf4j
+@ApplicationScoped
+@RequiredArgsConstructor
+public class StarBalanceCache {
+
+    final TelegramSender sender;
+
+    @ConfigProperty(name = "tg.star-balance.ttl")
+    Duration ttl;
+
+    final AtomicReference<Cached> cached = new AtomicReference<>();
+    final LongAdder hits = new LongAdder();
+    final LongAdder misses = new LongAdder();
+    final LongAdder coalesced = new LongAdder();
+
+    record Cached(CompletableFuture<StarAmount> balance, long requestedAt) {}
+
+    public CompletableFuture<StarAmount> get() {
+        final var current = cached.get();
+        if (current != null) {
+            if (!current.balance().isDone()) {
+                coalesced.increment();
+                return current.balance();
+            }
+            if (!current.balance().isCompletedExceptionally()
+                    && System.nanoTime() - current.requestedAt() < ttl.toNanos()) {
+                hits.increment();
+                return current.balance();
+            }
+        }
+
+        final var loading = new Cached(new CompletableFuture<>(), System.nanoTime());
+        if (!cached.compareAndSet(current, loading)) {
+            // Another caller started a load first, share it
+            coalesced.increment();
+            return get();
+        }
+        misses.increment();
+        fetch().whenComplete((starAmount, e) -> {
+            if (e != null) {
+                loading.balance().completeExceptionally(e);
+            } else {
+                loading.balance().complete(starAmount);
+            }
+        });
+        return loading.balance();
+    }
+
+    /**
+     * Drops the cached balance when the message carries a successful star payment or refund.
+     */
+    public void onMessage(final IncomingMessage message) {
+        final var successfulPayment = message.getSuccessfulPayment();
+        final var refundedPayment = message.getRefundedPayment();
+        if ((successfulPayment != null && StarLedger.STARS_CURRENCY.equals(successfulPayment.getCurrency()))
+                || (refundedPayment != null && StarLedger.STARS_CURRENCY.equals(refundedPayment.getCurrency()))) {
+            invalidate();
+        }
+    }
+
+    public void invalidate() {
+        cached.set(null);
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    public long coalesced() {
+        return coalesced.sum();
+    }
+
+    CompletableFuture<StarAmount> fetch() {
+        final var getMyStarBalanceMessage = new GetMyStarBalanceMessage();
+        log.debug("Message, {}", getMyStarBalanceMessage);
+
+        return sender.send(null, getMyStarBalanceMessage, MessageResultStarAmount.class)
+                .thenApply(MessageResultStarAmount::getStarAmount)
+                .whenComplete((starAmount, e) -> log.debug("{}", starAmount));
+    }
+}
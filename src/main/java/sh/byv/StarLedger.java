@@ -0,0 +1,158 @@
+package sh.byv;
+
+import jakarta.enterprise.context.ApplicationScoped;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.camel.component.telegram.model.IncomingMessage;
+import org.apache.camel.component.telegram.model.User;
+import org.apache.camel.component.telegram.model.payments.GetStarTransactionsMessage;
+import org.apache.camel.component.telegram.model.payments.MessageResultStarTransactions;
+import org.apache.camel.component.telegram.model.payments.StarTransaction;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * In-process copy of the bot's Telegram Star transactions. It is seeded once with paged
+ * {@link GetStarTransactionsMessage} calls and then kept current from the payment and refund messages the bot
+ * receives, so lookups never go back to the API.
+ */
+@Slf4j
+@ApplicationScoped
+@RequiredArgsConstructor
+public class StarLedger {
+
+    static final int PAGE_SIZE = 100;
+    static final String STARS_CURRENCY = "XTR";
+
+    final TelegramSender sender;
+
+    final Map<String, Entry> payments = new ConcurrentHashMap<>();
+    final Set<String> refunded = ConcurrentHashMap.newKeySet();
+    final ConcurrentSkipListSet<Entry> nonRefunded =
+            new ConcurrentSkipListSet<>(Comparator.comparingLong(Entry::date).thenComparing(Entry::id));
+    final AtomicReference<CompletableFuture<Void>> seeding = new AtomicReference<>();
+
+    public record Entry(
+            String id, long amount, Long userId, String firstName, String lastName, String username, long date) {
+
+        static Entry of(final String id, final long amount, final User user, final long date) {
+            return new Entry(
+                    id, amount, user.getId(), user.getFirstName(), user.getLastName(), user.getUsername(), date);
+        }
+    }
+
+    /**
+     * Completes once the ledger holds the transaction history, fetching it on first use.
+     */
+    public CompletableFuture<Void> seeded() {
+        final var current = seeding.get();
+        if (current != null) {
+            return current;
+        }
+        final var seed = new CompletableFuture<Void>();
+        if (!seeding.compareAndSet(null, seed)) {
+            return seeding.get();
+        }
+        fetchPage(0).whenComplete((result, e) -> {
+            if (e != null) {
+                log.error("Could not seed star ledger", e);
+                // Let the next lookup try again
+                seeding.set(null);
+                seed.completeExceptionally(e);
+            } else {
+                log.info("Star ledger seeded with {} payments, {} refunded", payments.size(), refunded.size());
+                seed.complete(null);
+            }
+        });
+        return seed;
+    }
+
+    CompletableFuture<Void> fetchPage(final int offset) {
+        final var getStarTransactionsMessage = new GetStarTransactionsMessage(offset, PAGE_SIZE);
+        return sender.send(null, getStarTransactionsMessage, MessageResultStarTransactions.class)
+                .thenCompose(result -> {
+                    final var transactions = result.getStarTransactions().getTransactions();
+                    transactions.forEach(this::apply);
+                    if (transactions.size() < PAGE_SIZE) {
+                        return CompletableFuture.completedFuture(null);
+                    }
+                    return fetchPage(offset + transactions.size());
+                });
+    }
+
+    void apply(final StarTransaction tx) {
+        if (tx.getReceiver() != null && tx.getReceiver().asUser() != null) {
+            markRefunded(tx.getId());
+        } else if (tx.getSource() != null && tx.getSource().asUser() != null) {
+            addPayment(
+                    Entry.of(tx.getId(), tx.getAmount(), tx.getSource().asUser().getUser(), tx.getDate()));
+        }
+    }
+
+    /**
+     * Records a successful payment or refund carried by an incoming message.
+     */
+    public void onMessage(final IncomingMessage message) {
+        final var successfulPayment = message.getSuccessfulPayment();
+        if (successfulPayment != null && STARS_CURRENCY.equals(successfulPayment.getCurrency())) {
+            addPayment(Entry.of(
+                    successfulPayment.getTelegramPaymentChargeId(),
+                    successfulPayment.getTotalAmount(),
+                    message.getFrom(),
+                    message.getDate().getEpochSecond()));
+        }
+        final var refundedPayment = message.getRefundedPayment();
+        if (refundedPayment != null && STARS_CURRENCY.equals(refundedPayment.getCurrency())) {
+            markRefunded(refundedPayment.getTelegramPaymentChargeId());
+        }
+    }
+
+    void addPayment(final Entry entry) {
+        if (payments.putIfAbsent(entry.id(), entry) != null) {
+            return;
+        }
+        nonRefunded.add(entry);
+        // A refund may have been recorded while the payment was being added
+        if (refunded.contains(entry.id())) {
+            nonRefunded.remove(entry);
+        }
+    }
+
+    public void markRefunded(final String id) {
+        refunded.add(id);
+        final var entry = payments.get(id);
+        if (entry != null) {
+            nonRefunded.remove(entry);
+        }
+    }
+
+    /**
+     * Drops everything held, so that the next lookup fetches the history again.
+     */
+    public void reset() {
+        seeding.set(null);
+        payments.clear();
+        refunded.clear();
+        nonRefunded.clear();
+    }
+
+    public Entry latestNonRefunded() {
+        final var descending = nonRefunded.descendingIterator();
+        return descending.hasNext() ? descending.next() : null;
+    }
+
+    /**
+     * Returns up to {@code limit} non-refunded payments, oldest first, skipping the first {@code offset}. The skipped
+     * payments are walked over, so the cost grows with the offset as well as the limit.
+     */
+    public List<Entry> nonRefunded(final int offset, final int limit) {
+        return nonRefunded.stream().skip(offset).limit(limit).toList();
+    }
+}
@@ -0,0 +1,228 @@
+package sh.byv;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.quarkus.runtime.StartupEvent;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.camel.CamelContext;
+import org.apache.camel.StartupListener;
+import org.apache.camel.component.telegram.model.IncomingMessage;
+import org.apache.camel.component.telegram.model.Update;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Optional warm-up run before the bot takes updates, so that the first real payments do not pay for class loading,
+ * interpretation and connection setup. Once the Camel context is up it fetches the star balance, a single cheap call
+ * that opens the connections to the Bot API, waiting for it no longer than a short timeout. It then feeds sample
+ * updates of every kind through JSON decoding and journal encoding, and all but payments through the update
+ * processor, wired to a sender that answers every call at once. The Telegram poller is started when the warm-up is
+ * done, and the webhook refuses updates until then.
+ */
+@Slf4j
+@ApplicationScoped
+@RequiredArgsConstructor
+public class StartupWarmUp {
+
+    final CamelContext camelContext;
+    final StarBalanceCache balanceCache;
+    final MessageTemplates templates;
+
+    @ConfigProperty(name = "tg.warm-up.enabled")
+    boolean enabled;
+
+    @ConfigProperty(name = "tg.warm-up.iterations")
+    int iterations;
+
+    @ConfigProperty(name = "tg.warm-up.max-duration")
+    Duration maxDuration;
+
+    @ConfigProperty(name = "tg.warm-up.prefetch-timeout")
+    Duration prefetchTimeout;
+
+    @ConfigProperty(name = "tg.ingress.mode")
+    IngressMode ingressMode;
+
+    @ConfigProperty(name = "tg.cluster.enabled")
+    boolean clustered;
+
+    volatile boolean done;
+
+    public boolean enabled() {
+        return enabled;
+    }
+
+    /**
+     * Whether updates may be taken, which is at once when the warm-up is disabled.
+     */
+    public boolean done() {
+        return !enabled || done;
+    }
+
+    void onStart(@Observes final StartupEvent event) throws Exception {
+        if (!enabled) {
+            return;
+        }
+        camelContext.addStartupListener(new StartupListener() {
+            @Override
+            public void onCamelContextStarted(final CamelContext context, final boolean alreadyStarted) {
+                // A listener added to a running context is only told about the start, right away
+                if (alreadyStarted) {
+                    startThread();
+                }
+            }
+
+            @Override
+            public void onCamelContextFullyStarted(final CamelContext context, final boolean alreadyStarted) {
+                if (!alreadyStarted) {
+                    startThread();
+                }
+            }
+        });
+    }
+
+    void startThread() {
+        Thread.ofPlatform().name("tg-warm-up").daemon().start(this::run);
+    }
+
+    void run() {
+        final var startedAt = System.nanoTime();
+        try {
+            prefetch();
+            final var updates = sampleUpdates();
+            final var routes = standInRoutes();
+            // Counted from here, so that a slow Bot API does not leave the loop without time to run
+            final var deadline = System.nanoTime() + maxDuration.toNanos();
+            var rounds = 0;
+            while (rounds < iterations && System.nanoTime() < deadline) {
+                for (final var json : updates) {
+                    final var update = WebhookIngress.payloadOf(WebhookIngress.MAPPER.readValue(json, Update.class));
+                    final var kind = IngressJournal.kindOf(update);
+                    final var logged = IngressJournal.MAPPER.writeValueAsBytes(update);
+                    IngressJournal.MAPPER.readValue(logged, kind.type);
+                    if (!isPayment(update)) {
+                        // Payments are logged at info level, which would only fill the log with warm-up entries
+                        routes.process(update).join();
+                    }
+                }
+                rounds++;
+            }
+            log.info(
+                    "Warm-up ran {} rounds of {} updates in {}ms",
+                    rounds,
+                    updates.size(),
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt));
+        } catch (Exception e) {
+            log.warn("Warm-up stopped early", e);
+        } finally {
+            openIngress();
+        }
+    }
+
+    /**
+     * Fetches the star balance, which opens the HTTP connections to the Bot API along the way. The ledger is left to
+     * seed on first use, since paging through the whole history could hold up ingress, and in clustered mode only one
+     * node keeps it.
+     */
+    void prefetch() {
+        try {
+            balanceCache.get().get(prefetchTimeout.toMillis(), TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            log.warn("Warm-up could not reach the Bot API", e);
+        }
+    }
+
+    void openIngress() {
+        done = true;
+        if (ingressMode == IngressMode.POLLING && !clustered) {
+            // In clustered mode the lease holder starts polling once it sees the warm-up is done
+            try {
+                camelContext.getRouteController().startRoute(TelegramRoutes.INGRESS_ROUTE);
+            } catch (Exception e) {
+                log.error("Could not start polling after warm-up", e);
+            }
+        }
+        log.info(
+                "Taking updates {}ms after JVM start",
+                ManagementFactory.getRuntimeMXBean().getUptime());
+    }
+
+    /**
+     * Builds a second processor over stand-in collaborators, so the warm-up leaves the real ledger, pools, caches and
+     * metrics untouched.
+     */
+    TelegramRoutes standInRoutes() {
+        final var sender = new StubTelegramSender();
+        final var standInLedger = new StarLedger(sender);
+        standInLedger.seeding.set(CompletableFuture.completedFuture(null));
+        final var invoiceLinks = new InvoiceLinkPool(sender, templates);
+        invoiceLinks.size = 0;
+        invoiceLinks.maxAge = Duration.ofHours(1);
+        final var standInBalance = new StarBalanceCache(sender);
+        standInBalance.ttl = Duration.ZERO;
+        final var report = new TransactionReport(standInLedger);
+        report.pageSize = 10;
+        final var metrics = new BotMetrics(new SimpleMeterRegistry());
+        metrics.firstResponse.set(true);
+        return new TelegramRoutes(
+                sender, null, null, standInLedger, invoiceLinks, standInBalance, metrics, templates, report, null);
+    }
+
+    static List<String> sampleUpdates() throws JsonProcessingException {
+        final var from = "{\"id\":1,\"is_bot\":false,\"first_name\":\"Warm\",\"username\":\"warmup\"}";
+        final var chat = "{\"id\":1,\"type\":\"private\"}";
+        final var updates = new ArrayList<String>();
+        updates.add(message(from, chat, "\"text\":\"/start\""));
+        for (final var data : TelegramRoutes.CALLBACKS) {
+            updates.add(callback(from, chat, data));
+        }
+        updates.add(callback(from, chat, TransactionReport.PAGE_PREFIX + 0));
+        updates.add(callback(from, chat, TransactionReport.PAGE_PREFIX + TransactionReport.BEFORE + 1));
+        updates.add(message(
+                from,
+                chat,
+                "\"successful_payment\":{\"currency\":\"XTR\",\"total_amount\":1,\"invoice_payload\":\"warm-up\","
+                        + "\"telegram_payment_charge_id\":\"warm-up\",\"provider_payment_charge_id\":\"warm-up\"}"));
+        updates.add(message(
+                from,
+                chat,
+                "\"refunded_payment\":{\"currency\":\"XTR\",\"total_amount\":1,\"invoice_payload\":\"warm-up\","
+                        + "\"telegram_payment_charge_id\":\"warm-up\"}"));
+        updates.add("{\"update_id\":1,\"pre_checkout_query\":{\"id\":\"warm-up\",\"from\":" + from
+                + ",\"currency\":\"XTR\",\"total_amount\":1,\"invoice_payload\":\"warm-up\"}}");
+        updates.add("{\"update_id\":1,\"shipping_query\":{\"id\":\"warm-up\",\"from\":" + from
+                + ",\"invoice_payload\":\"warm-up\",\"shipping_address\":{\"country_code\":\"RU\",\"state\":\"\","
+                + "\"city\":\"Moscow\",\"street_line1\":\"Red Square\",\"street_line2\":\"\","
+                + "\"post_code\":\"109012\"}}}");
+        // Fail here rather than in the loop if the samples no longer match the models
+        for (final var json : updates) {
+            WebhookIngress.MAPPER.readTree(json);
+        }
+        return updates;
+    }
+
+    static boolean isPayment(final Object update) {
+        return update instanceof IncomingMessage message
+                && (message.getSuccessfulPayment() != null || message.getRefundedPayment() != null);
+    }
+
+    static String message(final String from, final String chat, final String content) {
+        return "{\"update_id\":1,\"message\":{\"message_id\":1,\"date\":1700000000,\"from\":" + from + ",\"chat\":"
+                + chat + "," + content + "}}";
+    }
+
+    static String callback(final String from, final String chat, final String data) {
+        return "{\"update_id\":1,\"callback_query\":{\"id\":\"warm-up\",\"from\":" + from + ",\"chat_instance\":\"1\","
+                + "\"data\":\"" + data + "\",\"message\":{\"message_id\":1,\"date\":1700000000,\"chat\":" + chat
+                + ",\"text\":\"What would you like to do?\"}}}";
+    }
+}
@@ -0,0 +1,53 @@
+package sh.byv;
+
+import jakarta.enterprise.inject.Vetoed;
+import org.apache.camel.Exchange;
+import org.apache.camel.component.telegram.model.MessageResultString;
+import org.apache.camel.component.telegram.model.payments.MessageResultStarAmount;
+import org.apache.camel.component.telegram.model.payments.StarAmount;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Stands in for the Camel producer side: every call completes at once with a canned result, so the startup warm-up and
+ * the benchmarks exercise the bot's own work rather than the Telegram round-trip. Vetoed, since it would otherwise
+ * inherit the sender's scope and compete with it for injection.
+ */
+@Vetoed
+class StubTelegramSender extends TelegramSender {
+
+    final Map<Class<?>, Object> results = new ConcurrentHashMap<>();
+
+    StubTelegramSender() {
+        super(null, null, null, null);
+
+        final var invoiceLink = new MessageResultString();
+        invoiceLink.setResult("https://t.me/$stub");
+        results.put(MessageResultString.class, invoiceLink);
+
+        final var balance = new MessageResultStarAmount();
+        balance.setStarAmount(new StarAmount(1000, 0));
+        results.put(MessageResultStarAmount.class, balance);
+    }
+
+    @Override
+    public CompletableFuture<Exchange> send(final String chatId, final Object body) {
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public <T> CompletableFuture<T> send(final String chatId, final Object body, final Class<T> resultType) {
+        return CompletableFuture.completedFuture(
+                resultType.cast(results.computeIfAbsent(resultType, StubTelegramSender::newInstance)));
+    }
+
+    static Object newInstance(final Class<?> type) {
+        try {
+            return type.getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot stub " + type.getName(), e);
+        }
+    }
+}
@@ -3,45 +3,32 @@ package sh.byv;
 import jakarta.enterprise.context.ApplicationScoped;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
-import org.apache.camel.ProducerTemplate;
+import org.apache.camel.Exchange;
 import org.apache.camel.builder.RouteBuilder;
 import org.apache.camel.component.telegram.model.EditMessageTextMessage;
 import org.apache.camel.component.telegram.model.IncomingCallbackQuery;
 import org.apache.camel.component.telegram.model.IncomingMessage;
-import org.apache.camel.component.telegram.model.InlineKeyboardButton;
-import org.apache.camel.component.telegram.model.InlineKeyboardMarkup;
 import org.apache.camel.component.telegram.model.MessageResult;
-import org.apache.camel.component.telegram.model.MessageResultString;
 import org.apache.camel.component.telegram.model.OutgoingCallbackQueryMessage;
 import org.apache.camel.component.telegram.model.OutgoingTextMessage;
 import org.apache.camel.component.telegram.model.ReplyMarkup;
 import org.apache.camel.component.telegram.model.SendChatActionMessage;
 import org.apache.camel.component.telegram.model.payments.AnswerPreCheckoutQueryMessage;
-import org.apache.camel.component.telegram.model.payments.AnswerShippingQueryMessage;
-import org.apache.camel.component.telegram.model.payments.CreateInvoiceLinkMessage;
-import org.apache.camel.component.telegram.model.payments.GetMyStarBalanceMessage;
-import org.apache.camel.component.telegram.model.payments.GetStarTransactionsMessage;
-import org.apache.camel.component.telegram.model.payments.LabeledPrice;
-import org.apache.camel.component.telegram.model.payments.MessageResultStarAmount;
-import org.apache.camel.component.telegram.model.payments.MessageResultStarTransactions;
 import org.apache.camel.component.telegram.model.payments.PreCheckoutQuery;
 import org.apache.camel.component.telegram.model.payments.RefundStarPaymentMessage;
-import org.apache.camel.component.telegram.model.payments.SendInvoiceMessage;
-import org.apache.camel.component.telegram.model.payments.ShippingOption;
 import org.apache.camel.component.telegram.model.payments.ShippingQuery;
-import org.apache.camel.component.telegram.model.payments.StarAmount;
-import org.apache.camel.component.telegram.model.payments.StarTransaction;
 import org.eclipse.microprofile.config.inject.ConfigProperty;
 
-import java.util.List;
+import java.util.Set;
 import java.util.UUID;
-import java.util.stream.Collectors;
+import java.util.concurrent.CompletableFuture;
 
 @Slf4j
 @ApplicationScoped
 @RequiredArgsConstructor
 public class TelegramRoutes extends RouteBuilder {
 
+    static final String INGRESS_ROUTE = "telegram-ingress";
     static final String TELEGRAM_STARS = "telegram-stars";
     static final String INVOICE_LINK = "invoice-link";
     static final String VIA_PROVIDER = "via-provider";
@@ -49,405 +36,279 @@ public class TelegramRoutes extends RouteBuilder {
     static final String REFUND_RECENT_TX = "refund-recent-tx";
     static final String STAR_BALANCE = "star-balance";
     static final String NON_REFUNDED_TX = "non-refunded-tx";
-
-    final ProducerTemplate producer;
-
-    @ConfigProperty(name = "tg.payment.token")
-    String paymentToken;
+    static final Set<String> CALLBACKS = Set.of(
+            TELEGRAM_STARS, INVOICE_LINK, VIA_PROVIDER, STARS_LINK, REFUND_RECENT_TX, STAR_BALANCE, NON_REFUNDED_TX);
+    static final Set<String> LEDGER_CALLBACKS = Set.of(REFUND_RECENT_TX, STAR_BALANCE, NON_REFUNDED_TX);
+
+    final TelegramSender sender;
+    final IngressJournal journal;
+    final ClusterCoordinator cluster;
+    final StarLedger ledger;
+    final InvoiceLinkPool invoiceLinks;
+    final StarBalanceCache balanceCache;
+    final BotMetrics metrics;
+    final MessageTemplates templates;
+    final TransactionReport report;
+    final StartupWarmUp warmUp;
+
+    @ConfigProperty(name = "tg.ingress.mode")
+    IngressMode ingressMode;
 
     @Override
     public void configure() {
-        from("telegram:bots").to("seda:processing?blockWhenFull=true");
+        journal.start(cluster.enabled() ? cluster.start(this::process, INGRESS_ROUTE) : this::process);
+        if (ingressMode == IngressMode.POLLING) {
+            // In clustered mode only the node holding the ingress lease polls, and only once warmed up
+            from("telegram:bots")
+                    .routeId(INGRESS_ROUTE)
+                    .autoStartup(!cluster.enabled() && !warmUp.enabled())
+                    .process(exchange -> journal.append(exchange.getMessage().getBody()));
+        }
         from("direct:send").to("telegram:bots");
+        from("timer:invoice-link-pool?period={{tg.invoice-link-pool.refill-period}}")
+                .process(exchange -> invoiceLinks.refill());
+    }
 
-        from("seda:processing?concurrentConsumers=16").process(exchange -> {
-            final var messageBody = exchange.getMessage().getBody();
-
-            if (messageBody instanceof IncomingMessage incomingMessage) {
-                if (incomingMessage.getSuccessfulPayment() != null) {
-                    final var successfulPayment = incomingMessage.getSuccessfulPayment();
-                    log.info("{}", successfulPayment);
-                } else if (incomingMessage.getRefundedPayment() != null) {
-                    final var refundedPayment = incomingMessage.getRefundedPayment();
-                    log.info("{}", refundedPayment);
-                } else {
-                    final var text = incomingMessage.getText();
-                    final var chatId = incomingMessage.getChat().getId();
-
-                    if (text.equals("/start")) {
-                        sendChatAction(chatId, SendChatActionMessage.Action.TYPING);
-                        sendMessage(
-                                chatId, "Hello, " + incomingMessage.getFrom().getFirstName());
-                        sendPaymentMenu(chatId);
-                    }
-                }
-            } else if (messageBody instanceof IncomingCallbackQuery callbackQuery) {
-                log.info("{}", callbackQuery);
-
-                answerCallbackQuery(callbackQuery.getId());
-
-                final var chatId = callbackQuery.getMessage().getChat().getId();
-
-                switch (callbackQuery.getData()) {
-                    case VIA_PROVIDER -> {
-                        hidePaymentKeyboard(callbackQuery.getMessage(), "Sending invoice...");
-                        sendInvoice(chatId);
-                    }
-                    case INVOICE_LINK -> {
-                        hidePaymentKeyboard(callbackQuery.getMessage(), "Creating invoice link...");
-                        final var invoiceLink = createInvoiceLink();
-                        sendMessage(chatId, "Your invoice link: " + invoiceLink);
-                    }
-                    case TELEGRAM_STARS -> {
-                        hidePaymentKeyboard(callbackQuery.getMessage(), "Sending Telegram Stars invoice...");
-                        sendInvoiceInStars(chatId);
-                    }
-                    case STARS_LINK -> {
-                        hidePaymentKeyboard(callbackQuery.getMessage(), "Creating Telegram Stars invoice link...");
-                        final var invoiceLink = createStarsLink();
-                        sendMessage(chatId, "Your invoice link in stars: " + invoiceLink);
-                    }
-                    case REFUND_RECENT_TX -> {
-                        hidePaymentKeyboard(callbackQuery.getMessage(), "Processing refund...");
-                        final var nonRefundedTransactions = getNonRefundedTransactions();
-                        if (!nonRefundedTransactions.isEmpty()) {
-                            final var lastTransaction = nonRefundedTransactions.getLast();
-                            refundTransaction(lastTransaction);
-                        } else {
-                            sendMessage(chatId, "No transaction found to refund");
-                        }
-                    }
-                    case STAR_BALANCE -> {
-                        hidePaymentKeyboard(callbackQuery.getMessage(), "Fetching star balance...");
-                        final var balance = getMyStarBalance();
-                        sendMessage(chatId, "Your star balance: " + balance.getAmount() + " stars");
-                    }
-                    case NON_REFUNDED_TX -> {
-                        hidePaymentKeyboard(callbackQuery.getMessage(), "Fetching non-refunded transactions...");
-                        final var transactions = getNonRefundedTransactions();
-                        if (transactions.isEmpty()) {
-                            sendMessage(chatId, "No non-refunded transactions found.");
-                        } else {
-                            final var sb = new StringBuilder("Non-refunded transactions:\n\n");
-                            for (final var tx : transactions) {
-                                sb.append("ID: ").append(tx.getId()).append("\n");
-                                sb.append("Amount: ").append(tx.getAmount()).append(" stars\n");
-                                final var user = tx.getSource().asUser().getUser();
-                                sb.append("User: ").append(user.getFirstName());
-                                if (user.getLastName() != null) {
-                                    sb.append(" ").append(user.getLastName());
-                                }
-                                if (user.getUsername() != null) {
-                                    sb.append(" (@").append(user.getUsername()).append(")");
-                                }
-                                sb.append("\n");
-                                final var dateTime = java.time.Instant.ofEpochSecond(tx.getDate())
-                                        .atZone(java.time.ZoneId.systemDefault())
-                                        .format(java.time.format.DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss"));
-                                sb.append("Date: ").append(dateTime).append("\n\n");
-                            }
-                            sendMessage(chatId, sb.toString());
-                        }
-                    }
-                }
-
-            } else if (messageBody instanceof ShippingQuery shippingQuery) {
-                log.info("{}", shippingQuery);
-                answerShippingQuery(shippingQuery.getId());
-
-            } else if (messageBody instanceof PreCheckoutQuery preCheckoutQuery) {
-                log.info("{}", preCheckoutQuery);
-                answerPreCheckoutQuery(preCheckoutQuery.getId());
+    /**
+     * Handles one update. Independent Telegram calls are started together, and the returned future completes once
+     * every call made for the update has finished, which keeps the next update of the same chat waiting behind it.
+     */
+    CompletableFuture<?> process(final Object messageBody) {
+        final var startedAt = System.nanoTime();
+        final CompletableFuture<?> handled;
+        try {
+            handled = handle(messageBody);
+        } catch (RuntimeException e) {
+            metrics.recordUpdate(messageBody, startedAt, e);
+            throw e;
+        }
+        return handled.whenComplete((result, e) -> metrics.recordUpdate(messageBody, startedAt, e));
+    }
 
+    CompletableFuture<?> handle(final Object messageBody) {
+        if (messageBody instanceof IncomingMessage incomingMessage) {
+            if (incomingMessage.getSuccessfulPayment() != null) {
+                final var successfulPayment = incomingMessage.getSuccessfulPayment();
+                log.info("{}", successfulPayment);
+                ledger.onMessage(incomingMessage);
+                balanceCache.onMessage(incomingMessage);
+            } else if (incomingMessage.getRefundedPayment() != null) {
+                final var refundedPayment = incomingMessage.getRefundedPayment();
+                log.info("{}", refundedPayment);
+                ledger.onMessage(incomingMessage);
+                balanceCache.onMessage(incomingMessage);
             } else {
-                log.error("Unsupported message, {}", messageBody.getClass().getSimpleName());
+                final var text = incomingMessage.getText();
+                final var chatId = incomingMessage.getChat().getId();
+
+                if (text.equals("/start")) {
+                    final var greeting = "Hello, " + incomingMessage.getFrom().getFirstName();
+                    return CompletableFuture.allOf(
+                            sendChatAction(chatId, SendChatActionMessage.Action.TYPING),
+                            sendMessage(chatId, greeting).thenCompose(result -> sendPaymentMenu(chatId)));
+                }
             }
-        });
+        } else if (messageBody instanceof IncomingCallbackQuery callbackQuery) {
+            log.debug("{}", callbackQuery);
+
+            final var answered = answerCallbackQuery(callbackQuery.getId());
+
+            final var message = callbackQuery.getMessage();
+            final var chatId = message.getChat().getId();
+
+            final CompletableFuture<?> handled =
+                    switch (callbackQuery.getData()) {
+                        case VIA_PROVIDER -> CompletableFuture.allOf(
+                                hidePaymentKeyboard(message, "Sending invoice..."), sendInvoice(chatId));
+                        case INVOICE_LINK -> CompletableFuture.allOf(
+                                hidePaymentKeyboard(message, "Creating invoice link..."),
+                                invoiceLinks
+                                        .take(InvoiceLinkPool.Template.INVOICE)
+                                        .thenCompose(invoiceLink ->
+                                                sendMessage(chatId, "Your invoice link: " + invoiceLink)));
+                        case TELEGRAM_STARS -> CompletableFuture.allOf(
+                                hidePaymentKeyboard(message, "Sending Telegram Stars invoice..."),
+                                sendInvoiceInStars(chatId));
+                        case STARS_LINK -> CompletableFuture.allOf(
+                                hidePaymentKeyboard(message, "Creating Telegram Stars invoice link..."),
+                                invoiceLinks
+                                        .take(InvoiceLinkPool.Template.STARS)
+                                        .thenCompose(invoiceLink ->
+                                                sendMessage(chatId, "Your invoice link in stars: " + invoiceLink)));
+                        case REFUND_RECENT_TX -> CompletableFuture.allOf(
+                                hidePaymentKeyboard(message, "Processing refund..."),
+                                ledger.seeded().thenCompose(seeded -> {
+                                    final var lastTransaction = ledger.latestNonRefunded();
+                                    if (lastTransaction != null) {
+                                        return refundTransaction(lastTransaction);
+                                    } else {
+                                        return sendMessage(chatId, "No transaction found to refund");
+                                    }
+                                }));
+                        case STAR_BALANCE -> CompletableFuture.allOf(
+                                hidePaymentKeyboard(message, "Fetching star balance..."),
+                                balanceCache
+                                        .get()
+                                        .thenCompose(balance -> sendMessage(
+                                                chatId, "Your star balance: " + balance.getAmount() + " stars")));
+                        case NON_REFUNDED_TX -> CompletableFuture.allOf(
+                                hidePaymentKeyboard(message, "Fetching non-refunded transactions..."),
+                                ledger.seeded().thenCompose(seeded -> {
+                                    final var page = report.page(0);
+                                    if (page == null) {
+                                        return sendKeyboardMessage(chatId, "No non-refunded transactions found.", null);
+                                    } else {
+                                        return sendKeyboardMessage(chatId, page.text(), page.keyboard());
+                                    }
+                                }));
+                        default -> turnTransactionsPage(message, callbackQuery.getData());
+                    };
+
+            return CompletableFuture.allOf(answered, handled);
+
+        } else if (messageBody instanceof ShippingQuery shippingQuery) {
+            log.debug("{}", shippingQuery);
+            return answerShippingQuery(shippingQuery.getId());
+
+        } else if (messageBody instanceof PreCheckoutQuery preCheckoutQuery) {
+            log.debug("{}", preCheckoutQuery);
+            return answerPreCheckoutQuery(preCheckoutQuery.getId());
+
+        } else {
+            log.error("Unsupported message, {}", messageBody.getClass().getSimpleName());
+        }
+        return CompletableFuture.completedFuture(null);
     }
 
-    void sendChatAction(final String chatId, final SendChatActionMessage.Action action) {
-        final var response = producer.send("direct:send", exchange -> {
-            exchange.getMessage().setHeader("CamelTelegramChatId", chatId);
-
-            final var sendChatActionMessage = new SendChatActionMessage(action);
-            exchange.getMessage().setBody(sendChatActionMessage);
-        });
-        final var messageResult = response.getMessage().getBody(MessageResult.class);
-        log.info("Result,  {}", messageResult);
+    /**
+     * Whether handling the update changes or reads the star ledger or balance: payments, refunds, and the callbacks
+     * that refund, report or show the balance.
+     */
+    static boolean usesLedger(final Object update) {
+        if (update instanceof IncomingMessage incomingMessage) {
+            return incomingMessage.getSuccessfulPayment() != null || incomingMessage.getRefundedPayment() != null;
+        } else if (update instanceof IncomingCallbackQuery callbackQuery) {
+            return LEDGER_CALLBACKS.contains(callbackQuery.getData())
+                    || TransactionReport.pageOf(callbackQuery.getData()) != null;
+        }
+        return false;
     }
 
-    void sendMessage(final String chatId, final String message) {
-        final var response = producer.send("direct:send", exchange -> {
-            exchange.getMessage().setHeader("CamelTelegramChatId", chatId);
-            exchange.getMessage().setBody(message);
-        });
-        final var messageResult = response.getMessage().getBody(MessageResult.class);
-        log.info("Result,  {}", messageResult);
-    }
-
-    void sendPaymentMenu(final String chatId) {
-        final var keyboardBuilder = InlineKeyboardMarkup.builder();
-
-        keyboardBuilder.addRow(List.of(InlineKeyboardButton.builder()
-                .text("Pay via provider")
-                .callbackData(VIA_PROVIDER)
-                .build()));
-
-        keyboardBuilder.addRow(List.of(InlineKeyboardButton.builder()
-                .text("Pay via invoice link")
-                .callbackData(INVOICE_LINK)
-                .build()));
-
-        keyboardBuilder.addRow(List.of(InlineKeyboardButton.builder()
-                .text("Pay by Telegram Stars")
-                .callbackData(TELEGRAM_STARS)
-                .build()));
-
-        keyboardBuilder.addRow(List.of(InlineKeyboardButton.builder()
-                .text("Pay by Telegram Stars via invoice link")
-                .callbackData(STARS_LINK)
-                .build()));
-
-        keyboardBuilder.addRow(List.of(InlineKeyboardButton.builder()
-                .text("Refund recent transaction")
-                .callbackData(REFUND_RECENT_TX)
-                .build()));
-
-        keyboardBuilder.addRow(List.of(InlineKeyboardButton.builder()
-                .text("Get star balance")
-                .callbackData(STAR_BALANCE)
-                .build()));
-
-        keyboardBuilder.addRow(List.of(InlineKeyboardButton.builder()
-                .text("Get non-refunded transactions")
-                .callbackData(NON_REFUNDED_TX)
-                .build()));
-
-        sendKeyboardMessage(chatId, "What would you like to do?", keyboardBuilder.build());
+    /**
+     * Whether the update may be handled again after a crash cut it short. A refund callback refunds whichever payment
+     * is latest when it runs, so running it twice could refund a second payment; the user can press the button again
+     * instead. Payments are recorded by charge id and are safe to repeat.
+     */
+    static boolean replayable(final Object update) {
+        return !(update instanceof IncomingCallbackQuery callbackQuery
+                && REFUND_RECENT_TX.equals(callbackQuery.getData()));
     }
 
-    void hidePaymentKeyboard(final IncomingMessage message, final String newText) {
-        producer.send("direct:send", exchange -> {
-            exchange.getMessage()
-                    .setHeader("CamelTelegramChatId", message.getChat().getId());
-
+    /**
+     * Shows the report page a previous or next button points to in place of the page the user is looking at.
+     */
+    CompletableFuture<?> turnTransactionsPage(final IncomingMessage message, final String callbackData) {
+        final var pageRef = TransactionReport.pageOf(callbackData);
+        if (pageRef == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return ledger.seeded().thenCompose(seeded -> {
+            final var page = pageRef.before() ? report.pageBefore(pageRef.offset()) : report.page(pageRef.offset());
             final var editMessage = EditMessageTextMessage.builder()
                     .messageId(message.getMessageId().intValue())
-                    .text(newText)
-                    .replyMarkup(null)
+                    .text(page != null ? page.text() : "No non-refunded transactions found.")
+                    .replyMarkup(page != null ? page.keyboard() : null)
                     .build();
-            exchange.getMessage().setBody(editMessage);
+            return sender.send(message.getChat().getId(), editMessage);
         });
     }
 
-    void sendKeyboardMessage(final String chatId, final String text, final ReplyMarkup replyMarkup) {
-        final var response = producer.send("direct:send", exchange -> {
-            exchange.getMessage().setHeader("CamelTelegramChatId", chatId);
-
-            final var message = new OutgoingTextMessage();
-            message.setText(text);
-            message.setReplyMarkup(replyMarkup);
-            exchange.getMessage().setBody(message);
-        });
-
-        log.info("{}", response);
+    CompletableFuture<MessageResult> sendChatAction(final String chatId, final SendChatActionMessage.Action action) {
+        final var sendChatActionMessage = new SendChatActionMessage(action);
+        return sender.send(chatId, sendChatActionMessage, MessageResult.class)
+                .whenComplete((messageResult, e) -> log.debug("Result,  {}", messageResult));
     }
 
-    void sendInvoice(final String chatId) {
-        final var response = producer.send("direct:send", exchange -> {
-            exchange.getMessage().setHeader("CamelTelegramChatId", chatId);
-
-            final var orderId = UUID.randomUUID().toString();
-
-            final var sendInvoiceMessage = new SendInvoiceMessage();
-            sendInvoiceMessage.setTitle("Camel Framework");
-            sendInvoiceMessage.setDescription("Camel is an Open Source integration framework");
-            sendInvoiceMessage.setPayload(orderId);
-            sendInvoiceMessage.setProviderToken(paymentToken);
-            sendInvoiceMessage.setCurrency("RUB");
-            sendInvoiceMessage.setMaxTipAmount(50000);
-            sendInvoiceMessage.setSuggestedTipAmounts(List.of(1000, 5000, 10000));
-            sendInvoiceMessage.setPrices(List.of(new LabeledPrice("Total", 100 * 100)));
-            sendInvoiceMessage.setNeedEmail(Boolean.TRUE);
-            sendInvoiceMessage.setSendEmailToProvider(Boolean.TRUE);
-            sendInvoiceMessage.setFlexible(Boolean.TRUE);
-
-            // Provider specific data field, receipt info, etc
-            sendInvoiceMessage.setProviderData(null);
-
-            log.info("{}", sendInvoiceMessage);
-
-            exchange.getMessage().setBody(sendInvoiceMessage);
-        });
-
-        log.info("{}", response.getMessage().getBody(MessageResult.class));
+    CompletableFuture<MessageResult> sendMessage(final String chatId, final String message) {
+        return sender.send(chatId, message, MessageResult.class)
+                .whenComplete((messageResult, e) -> log.debug("Result,  {}", messageResult));
     }
 
-    void sendInvoiceInStars(final String chatId) {
-        final var response = producer.send("direct:send", exchange -> {
-            exchange.getMessage().setHeader("CamelTelegramChatId", chatId);
-
-            final var orderId = UUID.randomUUID().toString();
-
-            final var sendInvoiceMessage = new SendInvoiceMessage();
-            sendInvoiceMessage.setTitle("Camel Framework");
-            sendInvoiceMessage.setDescription("Camel is an Open Source integration framework");
-            sendInvoiceMessage.setPayload(orderId);
-            // Pass an empty string for payments in Telegram Stars
-            sendInvoiceMessage.setProviderToken("");
-            sendInvoiceMessage.setCurrency("XTR");
-            sendInvoiceMessage.setPrices(List.of(new LabeledPrice("Total", 1)));
-
-            log.info("{}", sendInvoiceMessage);
-
-            exchange.getMessage().setBody(sendInvoiceMessage);
-        });
-
-        log.info("{}", response.getMessage().getBody(MessageResult.class));
+    CompletableFuture<Exchange> sendPaymentMenu(final String chatId) {
+        return sendKeyboardMessage(chatId, "What would you like to do?", templates.paymentMenu());
     }
 
-    String createInvoiceLink() {
-        final var response = producer.send("direct:send", exchange -> {
-            final var orderId = UUID.randomUUID().toString();
-            final var createInvoiceLinkMessage = new CreateInvoiceLinkMessage();
-            createInvoiceLinkMessage.setTitle("Camel Framework");
-            createInvoiceLinkMessage.setDescription("Camel is an Open Source integration framework");
-            createInvoiceLinkMessage.setPayload(orderId);
-            createInvoiceLinkMessage.setProviderToken(paymentToken);
-            createInvoiceLinkMessage.setCurrency("RUB");
-            createInvoiceLinkMessage.setMaxTipAmount(50000);
-            createInvoiceLinkMessage.setSuggestedTipAmounts(List.of(1000, 5000, 10000));
-            createInvoiceLinkMessage.setPrices(List.of(new LabeledPrice("Total", 100 * 100)));
-            createInvoiceLinkMessage.setNeedEmail(Boolean.TRUE);
-            createInvoiceLinkMessage.setSendEmailToProvider(Boolean.TRUE);
-            createInvoiceLinkMessage.setFlexible(Boolean.TRUE);
-
-            // Provider specific data field, receipt info, etc
-            createInvoiceLinkMessage.setProviderData(null);
-
-            log.info("{}", createInvoiceLinkMessage);
-
-            exchange.getMessage().setBody(createInvoiceLinkMessage);
-        });
-
-        final var invoiceLink =
-                response.getMessage().getBody(MessageResultString.class).getResult();
-        log.info("Invoice link, {}", invoiceLink);
-        return invoiceLink;
+    CompletableFuture<Exchange> hidePaymentKeyboard(final IncomingMessage message, final String newText) {
+        final var editMessage = EditMessageTextMessage.builder()
+                .messageId(message.getMessageId().intValue())
+                .text(newText)
+                .replyMarkup(null)
+                .build();
+        return sender.send(message.getChat().getId(), editMessage);
     }
 
-    String createStarsLink() {
-        final var response = producer.send("direct:send", exchange -> {
-            final var orderId = UUID.randomUUID().toString();
-            final var createInvoiceLinkMessage = new CreateInvoiceLinkMessage();
-            createInvoiceLinkMessage.setTitle("Camel Framework");
-            createInvoiceLinkMessage.setDescription("Camel is an Open Source integration framework");
-            createInvoiceLinkMessage.setPayload(orderId);
-            // Pass an empty string for payments in Telegram Stars
-            createInvoiceLinkMessage.setProviderToken("");
-            createInvoiceLinkMessage.setCurrency("XTR");
-            createInvoiceLinkMessage.setPrices(List.of(new LabeledPrice("Total", 1)));
-
-            log.info("{}", createInvoiceLinkMessage);
-
-            exchange.getMessage().setBody(createInvoiceLinkMessage);
-        });
+    CompletableFuture<Exchange> sendKeyboardMessage(
+            final String chatId, final String text, final ReplyMarkup replyMarkup) {
+        final var message = new OutgoingTextMessage();
+        message.setText(text);
+        message.setReplyMarkup(replyMarkup);
 
-        final var invoiceLink =
-                response.getMessage().getBody(MessageResultString.class).getResult();
-        log.info("Invoice link, {}", invoiceLink);
-        return invoiceLink;
+        return sender.send(chatId, message).whenComplete((response, e) -> log.debug("{}", response));
     }
 
-    public void answerCallbackQuery(final String queryId) {
-        final var response = producer.send("direct:send", exchange -> {
-            final var outgoingCallbackQueryMessage = new OutgoingCallbackQueryMessage();
-            outgoingCallbackQueryMessage.setCallbackQueryId(queryId);
-            log.info("Message, {}", outgoingCallbackQueryMessage);
-            exchange.getMessage().setBody(outgoingCallbackQueryMessage);
-        });
+    CompletableFuture<MessageResult> sendInvoice(final String chatId) {
+        final var sendInvoiceMessage = templates.invoice(UUID.randomUUID().toString());
+        log.debug("{}", sendInvoiceMessage);
 
-        log.info("{}", response.getMessage().getBody(MessageResult.class));
+        return sender.send(chatId, sendInvoiceMessage, MessageResult.class)
+                .whenComplete((messageResult, e) -> log.debug("{}", messageResult));
     }
 
-    public void answerPreCheckoutQuery(final String queryId) {
-        final var response = producer.send("direct:send", exchange -> {
-            final var answerPreCheckoutQueryMessage = new AnswerPreCheckoutQueryMessage(queryId, true, null);
-            log.info("Message, {}", answerPreCheckoutQueryMessage);
-            exchange.getMessage().setBody(answerPreCheckoutQueryMessage);
-        });
+    CompletableFuture<MessageResult> sendInvoiceInStars(final String chatId) {
+        final var sendInvoiceMessage = templates.starsInvoice(UUID.randomUUID().toString());
+        log.debug("{}", sendInvoiceMessage);
 
-        log.info("{}", response.getMessage().getBody(MessageResult.class));
+        return sender.send(chatId, sendInvoiceMessage, MessageResult.class)
+                .whenComplete((messageResult, e) -> log.debug("{}", messageResult));
     }
 
-    public void answerShippingQuery(final String queryId) {
-        final var response = producer.send("direct:send", exchange -> {
-            final var answerShippingQueryMessage = new AnswerShippingQueryMessage(
-                    queryId,
-                    true,
-                    List.of(
-                            new ShippingOption(
-                                    "car",
-                                    "Car",
-                                    List.of(new LabeledPrice("Today", 10000), new LabeledPrice("Tomorrow", 5000))),
-                            new ShippingOption(
-                                    "bike",
-                                    "Bike",
-                                    List.of(new LabeledPrice("Today", 5000), new LabeledPrice("Tomorrow", 2500)))),
-                    null);
-            log.info("{}", answerShippingQueryMessage);
-            exchange.getMessage().setBody(answerShippingQueryMessage);
-        });
+    public CompletableFuture<MessageResult> answerCallbackQuery(final String queryId) {
+        final var outgoingCallbackQueryMessage = new OutgoingCallbackQueryMessage();
+        outgoingCallbackQueryMessage.setCallbackQueryId(queryId);
+        log.debug("Message, {}", outgoingCallbackQueryMessage);
 
-        log.info("{}", response.getMessage().getBody(MessageResult.class));
+        return sender.send(null, outgoingCallbackQueryMessage, MessageResult.class)
+                .whenComplete((messageResult, e) -> log.debug("{}", messageResult));
     }
 
-    public StarAmount getMyStarBalance() {
-        final var response = producer.send("direct:send", exchange -> {
-            final var getMyStarBalanceMessage = new GetMyStarBalanceMessage();
-            log.info("Message, {}", getMyStarBalanceMessage);
-            exchange.getMessage().setBody(getMyStarBalanceMessage);
-        });
+    public CompletableFuture<MessageResult> answerPreCheckoutQuery(final String queryId) {
+        final var answerPreCheckoutQueryMessage = new AnswerPreCheckoutQueryMessage(queryId, true, null);
+        log.debug("Message, {}", answerPreCheckoutQueryMessage);
 
-        final var starAmount = response.getMessage().getBody(MessageResultStarAmount.class).getStarAmount();
-        log.info("{}", starAmount);
-        return starAmount;
+        return sender.send(null, answerPreCheckoutQueryMessage, MessageResult.class)
+                .whenComplete((messageResult, e) -> log.debug("{}", messageResult));
     }
 
-    public List<StarTransaction> getNonRefundedTransactions() {
-        final var response = producer.send("direct:send", exchange -> {
-            final var getStarTransactionsMessage = new GetStarTransactionsMessage();
-            log.info("Message, {}", getStarTransactionsMessage);
-            exchange.getMessage().setBody(getStarTransactionsMessage);
-        });
-
-        final var starTransactions =
-                response.getMessage().getBody(MessageResultStarTransactions.class).getStarTransactions();
+    public CompletableFuture<MessageResult> answerShippingQuery(final String queryId) {
+        final var answerShippingQueryMessage = templates.shippingOptions(queryId);
+        log.debug("{}", answerShippingQueryMessage);
 
-        final var refundedTxIds = starTransactions.getTransactions().stream()
-                .filter(tx -> tx.getReceiver() != null && tx.getReceiver().asUser() != null)
-                .map(StarTransaction::getId)
-                .collect(Collectors.toSet());
-
-        final var nonRefundedTransactions = starTransactions.getTransactions().stream()
-                .filter(tx -> tx.getSource() != null && tx.getSource().asUser() != null)
-                .filter(tx -> !refundedTxIds.contains(tx.getId()))
-                .toList();
-
-        log.info("{}", starTransactions);
-        return nonRefundedTransactions;
+        return sender.send(null, answerShippingQueryMessage, MessageResult.class)
+                .whenComplete((messageResult, e) -> log.debug("{}", messageResult));
     }
 
-    public void refundTransaction(final StarTransaction starTransaction) {
-        final var txId = starTransaction.getId();
-        final var userId = starTransaction.getSource().asUser().getUser().getId();
+    public CompletableFuture<MessageResult> refundTransaction(final StarLedger.Entry starTransaction) {
+        final var txId = starTransaction.id();
+        final var userId = starTransaction.userId();
 
-        final var response = producer.send("direct:send", exchange -> {
-            final var refundStarPaymentMessage = new RefundStarPaymentMessage(userId, txId);
-            log.info("Message, {}", refundStarPaymentMessage);
-            exchange.getMessage().setBody(refundStarPaymentMessage);
-        });
+        final var refundStarPaymentMessage = new RefundStarPaymentMessage(userId, txId);
+        log.debug("Message, {}", refundStarPaymentMessage);
 
-        log.info("{}", response.getMessage().getBody(MessageResult.class));
+        return sender.send(null, refundStarPaymentMessage, MessageResult.class).whenComplete((messageResult, e) -> {
+            log.debug("{}", messageResult);
+            if (messageResult != null && messageResult.isOk()) {
+                ledger.markRefunded(txId);
+            }
+        });
     }
 }
@@ -0,0 +1,88 @@
+package sh.byv;
+
+import jakarta.enterprise.context.ApplicationScoped;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.camel.Exchange;
+import org.apache.camel.ProducerTemplate;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Non-blocking facade over {@code direct:send}. Calls return as soon as the request is handed to the Telegram
+ * producer, so independent calls can be issued together and only dependent steps need to be chained. Every call
+ * passes the rate limiter first and is retried after {@code retry_after} when Telegram answers with 429. Each
+ * attempt is timed per Bot API method. Calls bound to a chat go through the coalescer, which may merge or drop them.
+ */
+@Slf4j
+@ApplicationScoped
+@RequiredArgsConstructor
+public class TelegramSender {
+
+    final ProducerTemplate producer;
+    final OutboundRateLimiter rateLimiter;
+    final BotMetrics metrics;
+    final OutboundCoalescer coalescer;
+
+    @ConfigProperty(name = "tg.rate-limit.max-retries")
+    int maxRetries;
+
+    public CompletableFuture<Exchange> send(final String chatId, final Object body) {
+        if (chatId != null && coalescer.enabled()) {
+            return coalescer.submit(chatId, body, (id, coalesced) -> send(id, coalesced, 0));
+        }
+        return send(chatId, body, 0);
+    }
+
+    CompletableFuture<Exchange> send(final String chatId, final Object body, final int attempt) {
+        return rateLimiter
+                .acquire(chatId, body)
+                .thenCompose(permit -> {
+                    final var startedAt = System.nanoTime();
+                    return producer.asyncSend("direct:send", exchange -> {
+                                if (chatId != null) {
+                                    exchange.getMessage().setHeader("CamelTelegramChatId", chatId);
+                                }
+                                exchange.getMessage().setBody(body);
+                            })
+                            .whenComplete((exchange, e) -> metrics.recordCall(body, startedAt, outcomeOf(exchange)));
+                })
+                .thenCompose(exchange -> {
+                    final var retryAfter = OutboundRateLimiter.retryAfterSeconds(exchange.getException());
+                    if (retryAfter < 0 || attempt >= maxRetries) {
+                        return CompletableFuture.completedFuture(exchange);
+                    }
+                    log.warn(
+                            "Rate limited on {}, retrying in {}s",
+                            body.getClass().getSimpleName(),
+                            retryAfter);
+                    rateLimiter.backOff(chatId, body, retryAfter);
+                    return send(chatId, body, attempt + 1);
+                });
+    }
+
+    static BotMetrics.Outcome outcomeOf(final Exchange exchange) {
+        if (exchange == null) {
+            return BotMetrics.Outcome.ERROR;
+        } else if (exchange.getException() == null) {
+            return BotMetrics.Outcome.OK;
+        } else if (OutboundRateLimiter.retryAfterSeconds(exchange.getException()) >= 0) {
+            return BotMetrics.Outcome.RATE_LIMITED;
+        }
+        return BotMetrics.Outcome.ERROR;
+    }
+
+    /**
+     * Sends the body and converts the response, completing exceptionally if the call failed.
+     */
+    public <T> CompletableFuture<T> send(final String chatId, final Object body, final Class<T> resultType) {
+        return send(chatId, body).thenApply(exchange -> {
+            if (exchange.getException() != null) {
+                throw new CompletionException(exchange.getException());
+            }
+            return exchange.getMessage().getBody(resultType);
+        });
+    }
+}
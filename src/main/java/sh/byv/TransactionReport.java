@@ -0,0 +1,156 @@
+package sh.byv;
+
+import jakarta.enterprise.context.ApplicationScoped;
+import lombok.RequiredArgsConstructor;
+import org.apache.camel.component.telegram.model.InlineKeyboardButton;
+import org.apache.camel.component.telegram.model.InlineKeyboardMarkup;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The non-refunded transactions report, rendered one page at a time. A page holds a fixed number of transactions,
+ * fewer if they would not fit in one message, and carries previous and next buttons whose callback data is where the
+ * page to show starts or ends, so other pages are only read from the ledger and rendered when the user turns to them.
+ * Reading a page walks the ledger from its oldest payment, so a deep page costs in proportion to its offset.
+ * The next page starts where this one ends and the previous page ends where this one starts, so turning back after a
+ * short page neither skips nor repeats transactions.
+ */
+@ApplicationScoped
+@RequiredArgsConstructor
+public class TransactionReport {
+
+    static final int MAX_TEXT_LENGTH = 4096;
+    static final String HEADER = "Non-refunded transactions:\n\n";
+    static final String PAGE_PREFIX = TelegramRoutes.NON_REFUNDED_TX + ":";
+    static final String BEFORE = "before-";
+    static final DateTimeFormatter DATE_FORMAT =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(ZoneId.systemDefault());
+
+    final StarLedger ledger;
+
+    @ConfigProperty(name = "tg.report.page-size")
+    int pageSize;
+
+    record Page(String text, InlineKeyboardMarkup keyboard) {}
+
+    /**
+     * Where a page button points: the page starting at the offset, or the page ending just before it.
+     */
+    record PageRef(int offset, boolean before) {}
+
+    /**
+     * Renders the page starting at the offset, or returns null if there are no transactions from there on.
+     */
+    public Page page(final int offset) {
+        // One more than fits shows whether there is a next page
+        final var entries = ledger.nonRefunded(offset, pageSize + 1);
+        if (entries.isEmpty()) {
+            return null;
+        }
+        final var text = new StringBuilder(1024).append(HEADER);
+        var rendered = 0;
+        for (final var entry : entries) {
+            if (rendered == pageSize) {
+                break;
+            }
+            final var start = text.length();
+            append(text, entry);
+            if (text.length() > MAX_TEXT_LENGTH && rendered > 0) {
+                text.setLength(start);
+                break;
+            }
+            rendered++;
+        }
+
+        return toPage(text, offset, offset + rendered, entries.size() > rendered);
+    }
+
+    /**
+     * Renders the page ending just before the offset, or returns null if there are no transactions before it.
+     */
+    public Page pageBefore(final int offset) {
+        final var from = Math.max(0, offset - pageSize);
+        // One more than the page shows whether there is a next page
+        final var entries = ledger.nonRefunded(from, offset - from + 1);
+        final var next = entries.size() > offset - from;
+        final List<StarLedger.Entry> candidates = next ? entries.subList(0, offset - from) : entries;
+        if (candidates.isEmpty()) {
+            return null;
+        }
+        // Count back from the end how many fit in one message
+        final var entryText = new StringBuilder(256);
+        var length = HEADER.length();
+        var first = candidates.size();
+        while (first > 0) {
+            entryText.setLength(0);
+            append(entryText, candidates.get(first - 1));
+            if (length + entryText.length() > MAX_TEXT_LENGTH && first < candidates.size()) {
+                break;
+            }
+            length += entryText.length();
+            first--;
+        }
+        final var text = new StringBuilder(length).append(HEADER);
+        for (final var entry : candidates.subList(first, candidates.size())) {
+            append(text, entry);
+        }
+        return toPage(text, from + first, from + candidates.size(), next);
+    }
+
+    static Page toPage(final StringBuilder text, final int start, final int end, final boolean next) {
+        final var buttons = new ArrayList<InlineKeyboardButton>(2);
+        if (start > 0) {
+            buttons.add(button("« Previous", BEFORE + start));
+        }
+        if (next) {
+            buttons.add(button("Next »", String.valueOf(end)));
+        }
+        final var keyboard = buttons.isEmpty()
+                ? null
+                : InlineKeyboardMarkup.builder().addRow(buttons).build();
+        return new Page(text.toString(), keyboard);
+    }
+
+    static void append(final StringBuilder text, final StarLedger.Entry tx) {
+        text.append("ID: ").append(tx.id()).append('\n');
+        text.append("Amount: ").append(tx.amount()).append(" stars\n");
+        text.append("User: ").append(tx.firstName());
+        if (tx.lastName() != null) {
+            text.append(' ').append(tx.lastName());
+        }
+        if (tx.username() != null) {
+            text.append(" (@").append(tx.username()).append(')');
+        }
+        text.append("\nDate: ");
+        DATE_FORMAT.formatTo(Instant.ofEpochSecond(tx.date()), text);
+        text.append("\n\n");
+    }
+
+    static InlineKeyboardButton button(final String text, final String page) {
+        return InlineKeyboardButton.builder()
+                .text(text)
+                .callbackData(PAGE_PREFIX + page)
+                .build();
+    }
+
+    /**
+     * Returns where a page button points, or null if the callback data is not a page button.
+     */
+    static PageRef pageOf(final String callbackData) {
+        if (callbackData == null || !callbackData.startsWith(PAGE_PREFIX)) {
+            return null;
+        }
+        final var before = callbackData.startsWith(BEFORE, PAGE_PREFIX.length());
+        final var offset = callbackData.substring(PAGE_PREFIX.length() + (before ? BEFORE.length() : 0));
+        try {
+            return new PageRef(Math.max(0, Integer.parseInt(offset)), before);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
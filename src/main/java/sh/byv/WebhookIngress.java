@@ -0,0 +1,159 @@
+package sh.byv;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.quarkus.runtime.StartupEvent;
+import io.vertx.ext.web.Router;
+import io.vertx.ext.web.RoutingContext;
+import io.vertx.ext.web.handler.BodyHandler;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.camel.component.telegram.model.Update;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Optional;
+
+/**
+ * Webhook ingress on the Vert.x router. Requests are checked against the secret token, decoded into the Telegram
+ * update models and logged to the ingress journal on the event loop. A full backlog, or a warm-up still running,
+ * answers 429 so that Telegram redelivers the update later.
+ */
+@Slf4j
+@ApplicationScoped
+@RequiredArgsConstructor
+public class WebhookIngress {
+
+    static final String SECRET_TOKEN_HEADER = "X-Telegram-Bot-Api-Secret-Token";
+    static final ObjectMapper MAPPER =
+            new ObjectMapper().configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    final IngressJournal journal;
+    final StartupWarmUp warmUp;
+
+    @ConfigProperty(name = "tg.ingress.mode")
+    IngressMode mode;
+
+    @ConfigProperty(name = "tg.webhook.path")
+    String path;
+
+    @ConfigProperty(name = "tg.webhook.url")
+    Optional<String> url;
+
+    @ConfigProperty(name = "tg.webhook.secret")
+    Optional<String> secret;
+
+    @ConfigProperty(name = "tg.webhook.max-connections")
+    int maxConnections;
+
+    @ConfigProperty(name = "camel.component.telegram.base-uri")
+    String baseUri;
+
+    @ConfigProperty(name = "camel.component.telegram.authorization-token")
+    String authorizationToken;
+
+    byte[] expectedSecret;
+
+    void init(@Observes final Router router) {
+        if (mode != IngressMode.WEBHOOK) {
+            return;
+        }
+        expectedSecret = secret.orElseThrow(
+                        () -> new IllegalStateException("tg.webhook.secret is required in webhook mode"))
+                .getBytes(StandardCharsets.UTF_8);
+        router.post(path)
+                .handler(BodyHandler.create().setBodyLimit(1024 * 1024))
+                .handler(this::handle);
+        log.info("Webhook ingress listening on {}", path);
+    }
+
+    /**
+     * Registers the webhook with Telegram, failing startup if it is refused, since no update would ever arrive.
+     */
+    void onStart(@Observes final StartupEvent event) throws IOException, InterruptedException {
+        if (mode != IngressMode.WEBHOOK || url.isEmpty()) {
+            return;
+        }
+        final var form = "url=" + URLEncoder.encode(url.get(), StandardCharsets.UTF_8)
+                + "&secret_token=" + URLEncoder.encode(secret.orElseThrow(), StandardCharsets.UTF_8)
+                + "&max_connections=" + maxConnections;
+        final var request = HttpRequest.newBuilder(URI.create(baseUri + "/bot" + authorizationToken + "/setWebhook"))
+                .header("Content-Type", "application/x-www-form-urlencoded")
+                .POST(HttpRequest.BodyPublishers.ofString(form))
+                .build();
+        try (final var client = HttpClient.newHttpClient()) {
+            final var response = client.send(request, HttpResponse.BodyHandlers.ofString());
+            final var registered = response.statusCode() == 200
+                    && MAPPER.readTree(response.body()).path("ok").asBoolean(false);
+            if (!registered) {
+                throw new IllegalStateException(
+                        "Webhook registration failed with status " + response.statusCode() + ", " + response.body());
+            }
+            log.info("Webhook registration, {}", response.body());
+        }
+    }
+
+    void handle(final RoutingContext context) {
+        final var token = context.request().getHeader(SECRET_TOKEN_HEADER);
+        if (token == null || !MessageDigest.isEqual(expectedSecret, token.getBytes(StandardCharsets.UTF_8))) {
+            context.response().setStatusCode(401).end();
+            return;
+        }
+        if (!warmUp.done()) {
+            context.response().setStatusCode(429).putHeader("Retry-After", "1").end();
+            return;
+        }
+
+        final var body = context.body().buffer();
+        if (body == null) {
+            context.response().setStatusCode(400).end();
+            return;
+        }
+        final Update update;
+        try {
+            update = MAPPER.readValue(body.getBytes(), Update.class);
+        } catch (IOException e) {
+            log.warn("Could not decode webhook update", e);
+            context.response().setStatusCode(400).end();
+            return;
+        }
+
+        final var payload = payloadOf(update);
+        if (payload == null) {
+            context.response().setStatusCode(200).end();
+            return;
+        }
+        if (journal.offer(payload)) {
+            context.response().setStatusCode(200).end();
+        } else {
+            context.response().setStatusCode(429).putHeader("Retry-After", "1").end();
+        }
+    }
+
+    /**
+     * Picks the part of the update the processor handles, the same way the polling consumer sets the body.
+     */
+    static Object payloadOf(final Update update) {
+        if (update.getMessage() != null) {
+            return update.getMessage();
+        } else if (update.getChannelPost() != null) {
+            return update.getChannelPost();
+        } else if (update.getCallbackQuery() != null) {
+            return update.getCallbackQuery();
+        } else if (update.getPreCheckoutQuery() != null) {
+            return update.getPreCheckoutQuery();
+        } else if (update.getShippingQuery() != null) {
+            return update.getShippingQuery();
+        }
+        return null;
+    }
+}
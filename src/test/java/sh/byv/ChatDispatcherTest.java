@@ -0,0 +1,151 @@
+package sh.byv;
+
+import org.apache.camel.component.telegram.model.Chat;
+import org.apache.camel.component.telegram.model.IncomingMessage;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ChatDispatcherTest {
+
+    ChatDispatcher dispatcher;
+
+    @BeforeEach
+    void setUp() {
+        dispatcher = new ChatDispatcher();
+        dispatcher.workers = Optional.of(4);
+        dispatcher.mode = ChatDispatcher.Mode.WORK_STEALING;
+        dispatcher.maxInFlight = 2;
+        dispatcher.maxQueuedPerChat = 3;
+        dispatcher.priorityWorkers = 1;
+        dispatcher.priorityMaxInFlight = 1;
+        dispatcher.init();
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        dispatcher.shutdown();
+    }
+
+    @Test
+    void updatesOfOneChatRunInArrivalOrder() throws Exception {
+        final var ran = new CopyOnWriteArrayList<Integer>();
+        final var gate = new CompletableFuture<Void>();
+        final var last = new CompletableFuture<Void>();
+        // The first update waits, so the rest queue behind it
+        assertTrue(dispatcher.offer(message("1"), () -> gate.thenRun(() -> ran.add(0))));
+        for (int i = 1; i < 3; i++) {
+            final var update = i;
+            assertTrue(dispatcher.offer(message("1"), () -> {
+                ran.add(update);
+                // Later updates finish first unless each waits for the one before it
+                return CompletableFuture.runAsync(
+                        () -> {}, CompletableFuture.delayedExecutor(30L * (3 - update), TimeUnit.MILLISECONDS));
+            }));
+        }
+        assertTrue(dispatcher.offer(message("1"), task(last)));
+        Thread.sleep(50);
+        assertEquals(List.of(), ran);
+
+        gate.complete(null);
+        last.get(1, TimeUnit.SECONDS);
+        assertEquals(List.of(0, 1, 2), ran);
+    }
+
+    @Test
+    void updatesOfDifferentChatsRunSideBySide() throws Exception {
+        // Each update blocks its worker until both have started, which only happens if they run at once
+        final var started = new CountDownLatch(2);
+        final var done = new ArrayList<CompletableFuture<Void>>();
+        for (final var chatId : List.of("1", "2")) {
+            final var finished = new CompletableFuture<Void>();
+            done.add(finished);
+            assertTrue(dispatcher.offer(message(chatId), () -> {
+                started.countDown();
+                try {
+                    if (started.await(1, TimeUnit.SECONDS)) {
+                        finished.complete(null);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return finished;
+            }));
+        }
+
+        CompletableFuture.allOf(done.toArray(CompletableFuture[]::new)).get(2, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void busyChatHoldsOnePermitHoweverManyUpdatesWait() throws Exception {
+        final var running = new CompletableFuture<Void>();
+        assertTrue(dispatcher.offer(message("1"), () -> running));
+        for (int i = 0; i < 3; i++) {
+            assertTrue(dispatcher.offer(message("1"), CompletableFuture::new));
+        }
+
+        assertEquals(1, dispatcher.inFlight(ChatDispatcher.Priority.BEST_EFFORT));
+        assertEquals(3, dispatcher.queued(ChatDispatcher.Priority.BEST_EFFORT));
+        // The second permit is still free for another chat
+        final var other = new CompletableFuture<Void>();
+        assertTrue(dispatcher.offer(message("2"), task(other)));
+        other.get(1, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void floodingChatIsRefusedOnceItsQueueIsFull() throws Exception {
+        final var running = new CompletableFuture<Void>();
+        assertTrue(dispatcher.offer(message("1"), () -> running));
+        for (int i = 0; i < 3; i++) {
+            assertTrue(dispatcher.offer(message("1"), CompletableFuture::new));
+        }
+
+        assertFalse(dispatcher.offer(message("1"), CompletableFuture::new));
+        assertFalse(dispatcher.dispatch(message("1"), CompletableFuture::new));
+        assertEquals(2, dispatcher.rejected(ChatDispatcher.Priority.BEST_EFFORT));
+        assertEquals(1, dispatcher.busyChats(ChatDispatcher.Priority.BEST_EFFORT));
+    }
+
+    @Test
+    void idleChatReleasesItsPermit() throws Exception {
+        final var done = new CompletableFuture<Void>();
+        assertTrue(dispatcher.offer(message("1"), task(done)));
+        done.get(1, TimeUnit.SECONDS);
+
+        final var deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        while (dispatcher.busyChats(ChatDispatcher.Priority.BEST_EFFORT) > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(0, dispatcher.busyChats(ChatDispatcher.Priority.BEST_EFFORT));
+        assertEquals(0, dispatcher.inFlight(ChatDispatcher.Priority.BEST_EFFORT));
+    }
+
+    static Supplier<CompletionStage<Void>> task(final CompletableFuture<Void> ran) {
+        return () -> {
+            ran.complete(null);
+            return ran;
+        };
+    }
+
+    static IncomingMessage message(final String chatId) {
+        final var chat = new Chat();
+        chat.setId(chatId);
+        final var message = new IncomingMessage();
+        message.setChat(chat);
+        return message;
+    }
+}
@@ -0,0 +1,244 @@
+package sh.byv;
+
+import io.quarkus.runtime.configuration.MemorySize;
+import org.apache.camel.component.telegram.model.IncomingCallbackQuery;
+import org.apache.camel.component.telegram.model.IncomingMessage;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class IngressJournalTest {
+
+    @TempDir
+    Path dir;
+
+    final List<IngressJournal> opened = new ArrayList<>();
+
+    @AfterEach
+    void tearDown() throws Exception {
+        for (final var journal : opened) {
+            crash(journal);
+        }
+    }
+
+    @Test
+    void replaysUpdatesThatNeverFinished() throws Exception {
+        final var journal = open(64 * 1024);
+        for (int i = 1; i <= 3; i++) {
+            assertTrue(journal.offer(message(i)));
+        }
+        journal.finished(2);
+        crash(journal);
+
+        final var recovered = open(64 * 1024);
+        assertEquals(List.of(1L, 3L), messageIds(recovered));
+        assertEquals(0, recovered.watermark());
+    }
+
+    @Test
+    void recoversWatermarkFromDoneRecords() throws Exception {
+        final var journal = open(64 * 1024);
+        for (int i = 1; i <= 3; i++) {
+            journal.offer(message(i));
+        }
+        for (long seq = 1; seq <= 3; seq++) {
+            journal.finished(seq);
+        }
+        assertEquals(3, journal.watermark());
+        // Crash before the flusher has persisted the watermark
+        crash(journal);
+
+        final var recovered = open(64 * 1024);
+        assertEquals(List.of(), messageIds(recovered));
+        assertEquals(3, recovered.watermark());
+        recovered.offer(message(4));
+        assertEquals(4, recovered.bestEffort.entries.peek().seq());
+    }
+
+    @Test
+    void dropsUpdatesDeliveredAgain() throws Exception {
+        final var journal = open(64 * 1024);
+        journal.offer(message(1));
+        crash(journal);
+
+        final var recovered = open(64 * 1024);
+        recovered.offer(message(1));
+        recovered.offer(message(2));
+        assertEquals(List.of(1L, 2L), messageIds(recovered));
+    }
+
+    @Test
+    void doesNotReplayRefundCallbacks() throws Exception {
+        final var journal = open(64 * 1024);
+        journal.offer(message(1));
+        journal.offer(callback(TelegramRoutes.REFUND_RECENT_TX));
+        journal.offer(message(3));
+        crash(journal);
+
+        final var recovered = open(64 * 1024);
+        assertEquals(List.of(1L, 3L), messageIds(recovered));
+        recovered.finished(1);
+        recovered.finished(3);
+        assertEquals(3, recovered.watermark());
+        crash(recovered);
+
+        assertEquals(List.of(), messageIds(open(64 * 1024)));
+    }
+
+    @Test
+    void stopsAtTornRecordAndWritesOverIt() throws Exception {
+        final var journal = open(64 * 1024);
+        journal.offer(message(1));
+        journal.offer(message(2));
+        final var tornAt = journal.active.buffer.position();
+        journal.offer(message(3));
+        final var path = journal.active.path;
+        crash(journal);
+        // Damage the body of the last record, as a write cut short by a power loss would
+        try (final var channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[] {(byte) 0xff, (byte) 0xff}), tornAt + IngressJournal.HEADER_SIZE);
+        }
+
+        final var recovered = open(64 * 1024);
+        assertEquals(List.of(1L, 2L), messageIds(recovered));
+        recovered.offer(message(4));
+        assertEquals(3, last(recovered).seq());
+        crash(recovered);
+
+        assertEquals(List.of(1L, 2L, 4L), messageIds(open(64 * 1024)));
+    }
+
+    @Test
+    void stopsAtTruncatedSegment() throws Exception {
+        final var journal = open(64 * 1024);
+        journal.offer(message(1));
+        final var cutAt = journal.active.buffer.position() + 10;
+        journal.offer(message(2));
+        final var path = journal.active.path;
+        crash(journal);
+        try (final var channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            channel.truncate(cutAt);
+        }
+
+        final var recovered = open(64 * 1024);
+        assertEquals(List.of(1L), messageIds(recovered));
+        recovered.offer(message(3));
+        crash(recovered);
+
+        assertEquals(List.of(1L, 3L), messageIds(open(64 * 1024)));
+    }
+
+    @Test
+    void deletesSegmentsOnceEverythingInThemFinished() throws Exception {
+        final var journal = open(2048);
+        for (int i = 1; i <= 50; i++) {
+            journal.offer(message(i));
+        }
+        final var written = List.copyOf(journal.segments);
+        assertTrue(written.size() > 2);
+        for (long seq = 1; seq <= 50; seq++) {
+            journal.finished(seq);
+        }
+        journal.flush();
+
+        assertEquals(List.of(journal.active), journal.segments);
+        for (final var segment : written) {
+            if (segment != journal.active) {
+                assertFalse(Files.exists(segment.path), segment.path.toString());
+            }
+        }
+        crash(journal);
+
+        final var recovered = open(2048);
+        assertEquals(List.of(), messageIds(recovered));
+        assertEquals(50, recovered.watermark());
+    }
+
+    @Test
+    void keepsSegmentsHoldingOnlyDoneRecordsAboveWatermark() throws Exception {
+        final var journal = open(2048);
+        for (int i = 1; i <= 400; i++) {
+            journal.offer(message(i));
+        }
+        // The first update stays unfinished, so the rest finish above the watermark and their done records fill
+        // segments of their own
+        for (long seq = 2; seq <= 400; seq++) {
+            journal.finished(seq);
+        }
+        journal.flush();
+        crash(journal);
+
+        assertEquals(List.of(1L), messageIds(open(2048)));
+    }
+
+    IngressJournal open(final int segmentSize) throws IOException {
+        final var journal = new IngressJournal(null, null);
+        journal.enabled = true;
+        journal.dir = dir;
+        journal.segmentSize = new MemorySize(BigInteger.valueOf(segmentSize));
+        // Flushed by hand, so a test decides what reached the watermark file before a crash
+        journal.flushInterval = Duration.ofHours(1);
+        journal.dedupWindow = 1000;
+        journal.maxBacklog = 1000;
+        journal.init();
+        opened.add(journal);
+        return journal;
+    }
+
+    /**
+     * Stops the journal without flushing it. Written records stay in the page cache, as they would after the process
+     * died.
+     */
+    static void crash(final IngressJournal journal) throws Exception {
+        journal.flusher.shutdownNow();
+        journal.flusher.awaitTermination(10, TimeUnit.SECONDS);
+        for (final var segment : journal.segments) {
+            segment.channel.close();
+        }
+        if (journal.spare != null) {
+            journal.spare.channel.close();
+        }
+        journal.watermarkChannel.close();
+    }
+
+    static List<Long> messageIds(final IngressJournal journal) {
+        return journal.bestEffort.entries.stream()
+                .map(entry -> ((IncomingMessage) entry.update()).getMessageId())
+                .toList();
+    }
+
+    static IngressJournal.Entry last(final IngressJournal journal) {
+        return List.copyOf(journal.bestEffort.entries).getLast();
+    }
+
+    static IncomingMessage message(final long id) throws IOException {
+        return IngressJournal.MAPPER.readValue(
+                "{\"message_id\":" + id + ",\"date\":1700000000,\"chat\":{\"id\":\"42\",\"type\":\"private\"},"
+                        + "\"text\":\"/start\"}",
+                IncomingMessage.class);
+    }
+
+    static IncomingCallbackQuery callback(final String data) throws IOException {
+        return IngressJournal.MAPPER.readValue(
+                "{\"id\":\"1\",\"from\":{\"id\":42,\"is_bot\":false,\"first_name\":\"Ann\"},\"data\":\"" + data
+                        + "\",\"message\":{\"message_id\":2,\"date\":1700000000,"
+                        + "\"chat\":{\"id\":\"42\",\"type\":\"private\"}}}",
+                IncomingCallbackQuery.class);
+    }
+}
@@ -0,0 +1,158 @@
+package sh.byv;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.component.telegram.model.EditMessageTextMessage;
+import org.apache.camel.component.telegram.model.InlineKeyboardButton;
+import org.apache.camel.component.telegram.model.InlineKeyboardMarkup;
+import org.apache.camel.component.telegram.model.OutgoingTextMessage;
+import org.apache.camel.component.telegram.model.SendChatActionMessage;
+import org.apache.camel.component.telegram.model.payments.SendInvoiceMessage;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class OutboundCoalescerTest {
+
+    static final String CHAT_ID = "42";
+
+    final List<Object> sent = new CopyOnWriteArrayList<>();
+    OutboundCoalescer coalescer;
+
+    @BeforeEach
+    void setUp() {
+        coalescer = new OutboundCoalescer(new DefaultCamelContext());
+        coalescer.window = Duration.ofMillis(50);
+        coalescer.chatActionTtl = Duration.ofSeconds(5);
+        coalescer.maxChats = 100;
+        coalescer.init();
+    }
+
+    @AfterEach
+    void tearDown() {
+        coalescer.shutdown();
+    }
+
+    @Test
+    void invoiceLinkIsSentAsTheEditOfTheMenu() throws Exception {
+        // INVOICE_LINK: hidePaymentKeyboard, then sendMessage with the pooled link
+        final var hidden = submit(edit("Creating invoice link..."));
+        assertEquals(List.of(), sent);
+        final var link = submit("Your invoice link: https://t.me/$link");
+
+        assertEquals(1, sent.size());
+        final var edit = assertInstanceOf(EditMessageTextMessage.class, sent.getFirst());
+        assertEquals("Your invoice link: https://t.me/$link", edit.getText());
+        assertEquals(7, edit.getMessageId().intValue());
+        assertNull(edit.getReplyMarkup());
+        assertTrue(hidden.isDone());
+        assertTrue(link.isDone());
+        assertEquals(1, coalescer.mergedCalls());
+    }
+
+    @Test
+    void startDropsTheTypingActionOnceTheGreetingFollows() {
+        // /start: sendChatAction(TYPING) alongside the greeting, then the menu once the greeting is sent
+        final var typing = submit(new SendChatActionMessage(SendChatActionMessage.Action.TYPING));
+        final var greeting = submit("Hello, Ann");
+        assertTrue(typing.isDone());
+        assertTrue(greeting.isDone());
+        final var menu = menu();
+        submit(menu);
+
+        assertEquals(List.of("Hello, Ann", menu), sent);
+        assertEquals(1, coalescer.droppedChatActions());
+    }
+
+    @Test
+    void starsInvoiceGoesOutAfterTheHeldEdit() {
+        // TELEGRAM_STARS: hidePaymentKeyboard alongside sendInvoice
+        final var edit = edit("Sending Telegram Stars invoice...");
+        submit(edit);
+        final var invoice = new SendInvoiceMessage();
+        submit(invoice);
+
+        assertEquals(List.of(edit, invoice), sent);
+    }
+
+    @Test
+    void loneEditGoesOutWhenTheWindowCloses() throws Exception {
+        final var edit = edit("Creating invoice link...");
+        final var hidden = submit(edit);
+        assertEquals(List.of(), sent);
+
+        hidden.get(1, TimeUnit.SECONDS);
+        assertEquals(List.of(edit), sent);
+    }
+
+    @Test
+    void repeatedTypingActionIsDroppedWhileShowing() throws Exception {
+        submit(new SendChatActionMessage(SendChatActionMessage.Action.TYPING))
+                .get(1, TimeUnit.SECONDS);
+        assertTrue(submit(new SendChatActionMessage(SendChatActionMessage.Action.TYPING))
+                .isDone());
+
+        assertEquals(1, sent.size());
+        assertEquals(1, coalescer.droppedChatActions());
+    }
+
+    @Test
+    void reduceKeepsOnlyTheLastEditOfAMessage() {
+        final var chat = coalescer.chatState(CHAT_ID);
+        final var first = new OutboundCoalescer.Call(edit("Processing refund..."));
+        final var second = new OutboundCoalescer.Call(edit("Refunded"));
+        final var calls = coalescer.reduce(chat, List.of(first, second), false);
+
+        assertEquals(1, calls.size());
+        assertSame(second.body, calls.getFirst().body);
+        assertEquals(2, calls.getFirst().waiters.size());
+    }
+
+    @Test
+    void mergeLeavesUnrelatedCallsApart() {
+        assertNull(OutboundCoalescer.merge("Hello", "World"));
+        assertNull(OutboundCoalescer.merge(edit("Sending invoice..."), menu()));
+        assertNull(OutboundCoalescer.merge(
+                edit("Sending invoice..."),
+                EditMessageTextMessage.builder().messageId(8).text("Other").build()));
+    }
+
+    CompletableFuture<Exchange> submit(final Object body) {
+        return coalescer.submit(CHAT_ID, body, (chatId, call) -> {
+            sent.add(call);
+            return CompletableFuture.completedFuture(null);
+        });
+    }
+
+    static EditMessageTextMessage edit(final String text) {
+        return EditMessageTextMessage.builder()
+                .messageId(7)
+                .text(text)
+                .replyMarkup(null)
+                .build();
+    }
+
+    static OutgoingTextMessage menu() {
+        final var message = new OutgoingTextMessage();
+        message.setText("What would you like to do?");
+        message.setReplyMarkup(InlineKeyboardMarkup.builder()
+                .addRow(List.of(InlineKeyboardButton.builder()
+                        .text("Get star balance")
+                        .callbackData(TelegramRoutes.STAR_BALANCE)
+                        .build()))
+                .build());
+        return message;
+    }
+}
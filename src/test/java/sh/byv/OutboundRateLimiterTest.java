@@ -0,0 +1,125 @@
+package sh.byv;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class OutboundRateLimiterTest {
+
+    final ScheduledThreadPoolExecutor delayQueue = new ScheduledThreadPoolExecutor(1);
+
+    @AfterEach
+    void tearDown() {
+        delayQueue.shutdownNow();
+    }
+
+    static final long START = TimeUnit.SECONDS.toNanos(1000);
+    static final long INTERVAL = TimeUnit.MILLISECONDS.toNanos(100);
+
+    @Test
+    void bucketLetsTheBurstThroughThenSpacesPermits() {
+        final var bucket = new OutboundRateLimiter.TokenBucket(10, 3);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(START, bucket.reserve(START));
+        }
+        assertEquals(START + INTERVAL, bucket.reserve(START));
+        assertEquals(START + 2 * INTERVAL, bucket.reserve(START));
+    }
+
+    @Test
+    void idleBucketRefillsNoFurtherThanTheBurst() {
+        final var bucket = new OutboundRateLimiter.TokenBucket(10, 2);
+        bucket.reserve(START);
+        final var later = START + TimeUnit.SECONDS.toNanos(10);
+        assertEquals(later, bucket.reserve(later));
+        assertEquals(later, bucket.reserve(later));
+        assertEquals(later + INTERVAL, bucket.reserve(later));
+    }
+
+    @Test
+    void tryAcquireReportsTheWaitWithoutBooking() {
+        final var bucket = new OutboundRateLimiter.TokenBucket(10, 2);
+        assertEquals(0, bucket.tryAcquire(START));
+        assertEquals(0, bucket.tryAcquire(START));
+        assertEquals(INTERVAL, bucket.tryAcquire(START));
+        assertEquals(INTERVAL / 2, bucket.tryAcquire(START + INTERVAL / 2));
+        assertEquals(0, bucket.tryAcquire(START + INTERVAL));
+    }
+
+    @Test
+    void blockedBucketWaitsUntilTheBlockEnds() {
+        final var bucket = new OutboundRateLimiter.TokenBucket(10, 2);
+        final var until = START + TimeUnit.SECONDS.toNanos(3);
+        bucket.blockUntil(until);
+        assertEquals(until - START, bucket.tryAcquire(START));
+        assertEquals(0, bucket.tryAcquire(until));
+        // An earlier block does not shorten a later one
+        bucket.blockUntil(START);
+        assertEquals(INTERVAL, bucket.tryAcquire(until));
+    }
+
+    @Test
+    void budgetHandsOutPermitsInArrivalOrder() throws Exception {
+        // Two permits at once, then one every 100ms
+        final var budget = new OutboundRateLimiter.Budget(new OutboundRateLimiter.TokenBucket(10, 2), delayQueue);
+        final var granted = new CopyOnWriteArrayList<Integer>();
+        final var sent = new ArrayList<CompletableFuture<Void>>();
+        for (int i = 0; i < 8; i++) {
+            final var permit = new CompletableFuture<Void>();
+            final var call = i;
+            sent.add(permit.thenRun(() -> granted.add(call)));
+            budget.acquire(permit);
+        }
+        assertEquals(List.of(0, 1), granted);
+        // The queued calls wait on a single wake-up rather than one each
+        assertEquals(1, delayQueue.getQueue().size());
+
+        CompletableFuture.allOf(sent.toArray(CompletableFuture[]::new)).get(5, TimeUnit.SECONDS);
+        assertEquals(IntStream.range(0, 8).boxed().toList(), granted);
+    }
+
+    @Test
+    void budgetQueuesLateArrivalsBehindEarlierCalls() throws Exception {
+        final var budget = new OutboundRateLimiter.Budget(new OutboundRateLimiter.TokenBucket(10, 1), delayQueue);
+        final var granted = new CopyOnWriteArrayList<String>();
+        final var first = new CompletableFuture<Void>();
+        final var second = new CompletableFuture<Void>();
+        budget.acquire(first);
+        final var secondSent = second.thenRun(() -> granted.add("second"));
+        budget.acquire(second);
+        assertTrue(first.isDone());
+        assertFalse(second.isDone());
+
+        // Hold the delay queue, so the second call is still queued when the next permit frees up
+        final var held = new CountDownLatch(1);
+        delayQueue.execute(() -> {
+            try {
+                held.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        Thread.sleep(300);
+        final var third = new CompletableFuture<Void>();
+        final var thirdSent = third.thenRun(() -> granted.add("third"));
+        budget.acquire(third);
+        assertFalse(third.isDone());
+
+        held.countDown();
+        CompletableFuture.allOf(secondSent, thirdSent).get(1, TimeUnit.SECONDS);
+        assertEquals(List.of("second", "third"), granted);
+        assertTrue(budget.waiters.isEmpty());
+    }
+}
@@ -0,0 +1,103 @@
+package sh.byv;
+
+import org.apache.camel.component.telegram.model.InlineKeyboardButton;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class TransactionReportTest {
+
+    final StarLedger ledger = new StarLedger(null);
+    final TransactionReport report = new TransactionReport(ledger);
+
+    @Test
+    void firstPageHasOnlyNext() {
+        report.pageSize = 3;
+        addPayments(5, "Ann");
+
+        final var page = report.page(0);
+        assertEquals(List.of("tx-0", "tx-1", "tx-2"), ids(page));
+        assertEquals(List.of("Next »:3"), buttons(page));
+    }
+
+    @Test
+    void lastPageHasOnlyPrevious() {
+        report.pageSize = 3;
+        addPayments(5, "Ann");
+
+        final var page = report.page(3);
+        assertEquals(List.of("tx-3", "tx-4"), ids(page));
+        assertEquals(List.of("« Previous:before-3"), buttons(page));
+    }
+
+    @Test
+    void singlePageHasNoButtons() {
+        report.pageSize = 3;
+        addPayments(3, "Ann");
+
+        assertNull(report.page(0).keyboard());
+        assertNull(report.pageBefore(3).keyboard());
+    }
+
+    @Test
+    void noPageBeyondEitherEnd() {
+        report.pageSize = 3;
+        addPayments(5, "Ann");
+
+        assertNull(report.page(5));
+        assertNull(report.pageBefore(0));
+    }
+
+    @Test
+    void turningBackAfterShortPagesShowsTheSamePages() {
+        report.pageSize = 3;
+        // Two of these fit in one message, so every page is cut short
+        addPayments(7, "A".repeat(1500));
+
+        final var first = report.page(0);
+        assertEquals(List.of("tx-0", "tx-1"), ids(first));
+        assertEquals(List.of("Next »:2"), buttons(first));
+        final var second = report.page(2);
+        assertEquals(List.of("tx-2", "tx-3"), ids(second));
+        assertEquals(List.of("« Previous:before-2", "Next »:4"), buttons(second));
+        final var third = report.page(4);
+        assertEquals(List.of("tx-4", "tx-5"), ids(third));
+
+        assertEquals(second.text(), report.pageBefore(4).text());
+        assertEquals(buttons(second), buttons(report.pageBefore(4)));
+        assertEquals(first.text(), report.pageBefore(2).text());
+        assertEquals(buttons(first), buttons(report.pageBefore(2)));
+    }
+
+    void addPayments(final int count, final String firstName) {
+        for (int i = 0; i < count; i++) {
+            ledger.addPayment(new StarLedger.Entry("tx-" + i, 1, 1L, firstName, null, null, 1_700_000_000L + i));
+        }
+    }
+
+    static List<String> ids(final TransactionReport.Page page) {
+        return page.text()
+                .lines()
+                .filter(line -> line.startsWith("ID: "))
+                .map(line -> line.substring("ID: ".length()))
+                .toList();
+    }
+
+    static List<String> buttons(final TransactionReport.Page page) {
+        if (page.keyboard() == null) {
+            return List.of();
+        }
+        return page.keyboard().getInlineKeyboard().stream()
+                .flatMap(List::stream)
+                .map(TransactionReportTest::describe)
+                .toList();
+    }
+
+    static String describe(final InlineKeyboardButton button) {
+        return button.getText() + ":"
+                + button.getCallbackData().substring(TransactionReport.PAGE_PREFIX.length());
+    }
+}